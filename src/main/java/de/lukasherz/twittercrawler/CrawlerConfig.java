@@ -0,0 +1,80 @@
+package de.lukasherz.twittercrawler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Read-only access to the crawler settings in config.properties. Every key can be overridden with a system
+ * property of the same name (e.g. -Dcrawler.executor.inflight-per-token=4).
+ */
+@Flogger
+public final class CrawlerConfig {
+
+    private static final Properties PROPERTIES = loadProperties();
+
+    private CrawlerConfig() {
+    }
+
+    private static Properties loadProperties() {
+        Properties properties = new Properties();
+
+        try (InputStream is = CrawlerConfig.class.getClassLoader().getResourceAsStream("config.properties")) {
+            if (is != null) {
+                properties.load(is);
+            } else {
+                log.atWarning().log("Could not load config.properties, using defaults");
+            }
+        } catch (IOException e) {
+            log.atSevere().withCause(e).log("could not load config.properties");
+        }
+
+        return properties;
+    }
+
+    public static String getString(String key, String defaultValue) {
+        return System.getProperty(key, PROPERTIES.getProperty(key, defaultValue));
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) return defaultValue;
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.atWarning().log("Invalid integer for %s: %s, using %d", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) return defaultValue;
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.atWarning().log("Invalid long for %s: %s, using %d", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String key, double defaultValue) {
+        String value = getString(key, null);
+        if (value == null) return defaultValue;
+
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            log.atWarning().log("Invalid double for %s: %s, using %s", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -2,7 +2,20 @@ package de.lukasherz.twittercrawler;
 
 import com.google.common.collect.ImmutableList;
 import de.lukasherz.twittercrawler.crawler.CrawlerHandler;
+import de.lukasherz.twittercrawler.crawler.DeadLetterStore.DeadLetter;
+import de.lukasherz.twittercrawler.data.aggregation.FollowingCountAggregator;
+import de.lukasherz.twittercrawler.data.database.DataPreprocessedExporter;
+import de.lukasherz.twittercrawler.data.database.DataPreprocessedTable;
+import de.lukasherz.twittercrawler.data.database.DatabaseManager;
+import de.lukasherz.twittercrawler.data.database.StorageBackend;
+import de.lukasherz.twittercrawler.data.database.StorageMerger;
+import de.lukasherz.twittercrawler.data.graph.FollowGraphWriter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
 import lombok.extern.flogger.Flogger;
 
 @Flogger
@@ -19,24 +32,157 @@ public class TwitterCrawler {
         "AAAAAAAAAAAAAAAAAAAAAHNAdAEAAAAAYZEMva804t85z0bI0dK5V3nNYqA%3DBL9Jfk7f7Ywohzv2YEbbqzNhtZ3juG4GnJoKkBFPJ7uofKyYgJ",
         "AAAAAAAAAAAAAAAAAAAAAJZAdAEAAAAAO6JWWGvkW3ovZ8RCb6o4LC%2BdOUw%3DJIHDrcnBp95NDpCm70j0EEku1M0f9EPNtE3WIuwEX4VfFpg0tH"
     );
-    public static String TOKEN = "";
+    public static ImmutableList<String> ACTIVE_TOKENS = ImmutableList.of();
 
     public static void main(String[] args) {
         if (args.length == 0) {
             System.out.println(
-                "Usage: java -jar TwitterCrawler.jar <token_id> <count_of-tweets_per_hashtag> <#hashtags...>");
+                "Usage: java -jar TwitterCrawler.jar <token_id|all> <count_of-tweets_per_hashtag|stream> <#hashtags...>");
+            System.out.println("       java -jar TwitterCrawler.jar <token_id|all> dead-letters <list|replay>");
+            System.out.println("       java -jar TwitterCrawler.jar merge <h2-file>");
+            System.out.println("       java -jar TwitterCrawler.jar export <directory>");
+            System.out.println("       java -jar TwitterCrawler.jar data-preprocessed <rebuild|check|repair>");
+            System.out.println("       java -jar TwitterCrawler.jar aggregate-followings");
+            System.out.println("       java -jar TwitterCrawler.jar graph-snapshot <file>");
             return;
         }
 
-        TOKEN = TOKENS.get(Integer.parseInt(args[0]));
+        if (args[0].equalsIgnoreCase("merge")) {
+            merge(args[1]);
+            return;
+        }
+        if (args[0].equalsIgnoreCase("export")) {
+            export(Path.of(args[1]));
+            return;
+        }
+        if (args[0].equalsIgnoreCase("data-preprocessed")) {
+            maintainDataPreprocessed(args[1]);
+            return;
+        }
+        if (args[0].equalsIgnoreCase("aggregate-followings")) {
+            aggregateFollowings();
+            return;
+        }
+        if (args[0].equalsIgnoreCase("graph-snapshot")) {
+            writeGraphSnapshot(Path.of(args[1]));
+            return;
+        }
+
+        if (args[0].equalsIgnoreCase("all")) {
+            ACTIVE_TOKENS = TOKENS;
+        } else {
+            ACTIVE_TOKENS = ImmutableList.of(TOKENS.get(Integer.parseInt(args[0])));
+        }
+        log.atInfo().log("Using %d bearer token(s)", ACTIVE_TOKENS.size());
 
         CrawlerHandler crawlerHandler = CrawlerHandler.getInstance();
 
-        for (String arg : Arrays.stream(args).skip(2).toList()) {
-            log.atInfo().log("Adding hashtag: %s", arg);
-            crawlerHandler.addHashtagSearchToQuery(arg, Integer.parseInt(args[1]));
+        if (args[1].equalsIgnoreCase("dead-letters")) {
+            try {
+                if (args.length > 2 && args[2].equalsIgnoreCase("replay")) {
+                    crawlerHandler.replayDeadLetters();
+                } else {
+                    for (DeadLetter deadLetter : crawlerHandler.getDeadLetters()) {
+                        System.out.println(deadLetter.failedAt() + " after " + deadLetter.attempts() + " retries: "
+                            + deadLetter.request() + " (" + deadLetter.reason() + ")");
+                    }
+                    return;
+                }
+            } catch (IOException e) {
+                log.atSevere().withCause(e).log("Could not read the dead letters");
+                return;
+            }
+        } else if (args[1].equalsIgnoreCase("stream")) {
+            List<String> hashtags = Arrays.stream(args).skip(2).toList();
+            log.atInfo().log("Streaming hashtags: %s", hashtags);
+            crawlerHandler.addHashtagStream(hashtags);
+        } else {
+            for (String arg : Arrays.stream(args).skip(2).toList()) {
+                log.atInfo().log("Adding hashtag: %s", arg);
+                crawlerHandler.addHashtagSearchToQuery(arg, Integer.parseInt(args[1]));
+            }
         }
 
+        Runtime.getRuntime().addShutdownHook(new Thread(crawlerHandler::stopSchedulers, "shutdown"));
         crawlerHandler.startSchedulers();
     }
+
+    /**
+     * Computes the following counts of users_pre_processed from the crawled followings.
+     */
+    private static void aggregateFollowings() {
+        try {
+            FollowingCountAggregator.fromConfig(DatabaseManager.getInstance()).run();
+        } catch (SQLException | IOException e) {
+            log.atSevere().withCause(e).log("Could not aggregate the followings");
+        } finally {
+            DatabaseManager.getInstance().close();
+        }
+    }
+
+    /**
+     * Writes user_following as a memory-mappable follow graph file.
+     */
+    private static void writeGraphSnapshot(Path file) {
+        try {
+            new FollowGraphWriter(DatabaseManager.getInstance()).write(file);
+        } catch (SQLException | IOException e) {
+            log.atSevere().withCause(e).log("Could not write the follow graph to %s", file);
+        } finally {
+            DatabaseManager.getInstance().close();
+        }
+    }
+
+    /**
+     * Writes data_preprocessed as Arrow files into the directory.
+     */
+    private static void export(Path directory) {
+        try {
+            List<Path> files = new DataPreprocessedExporter(DatabaseManager.getInstance(), directory).export();
+            log.atInfo().log("Exported data_preprocessed to %d files in %s", files.size(), directory);
+        } catch (SQLException | IOException e) {
+            log.atSevere().withCause(e).log("Could not export data_preprocessed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            DatabaseManager.getInstance().close();
+        }
+    }
+
+    /**
+     * Rebuilds the materialised data_preprocessed table or compares it with the view and optionally repairs it.
+     */
+    private static void maintainDataPreprocessed(String command) {
+        DataPreprocessedTable table = DatabaseManager.getInstance().getDataPreprocessedTable();
+
+        try {
+            switch (command.toLowerCase()) {
+                case "rebuild" -> table.rebuild();
+                case "check" -> table.check(false);
+                case "repair" -> table.check(true);
+                default -> System.out.println("Unknown command: " + command);
+            }
+        } catch (SQLException e) {
+            log.atSevere().withCause(e).log("Could not %s data_preprocessed", command);
+        } finally {
+            DatabaseManager.getInstance().close();
+        }
+    }
+
+    /**
+     * Copies the crawl stored in the H2 file into the configured storage.
+     */
+    private static void merge(String h2File) {
+        Properties properties = new Properties();
+        properties.setProperty("crawler.storage.h2.file", h2File);
+
+        try (DatabaseManager source = DatabaseManager.open(StorageBackend.H2, properties)) {
+            new StorageMerger(source, DatabaseManager.getInstance()).merge();
+            log.atInfo().log("Merged %s into %s", h2File, DatabaseManager.getInstance().getBackend());
+        } catch (SQLException e) {
+            log.atSevere().withCause(e).log("Could not merge %s", h2File);
+        } finally {
+            DatabaseManager.getInstance().close();
+        }
+    }
 }
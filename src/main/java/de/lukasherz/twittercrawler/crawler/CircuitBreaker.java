@@ -0,0 +1,106 @@
+package de.lukasherz.twittercrawler.crawler;
+
+import de.lukasherz.twittercrawler.CrawlerConfig;
+import java.time.Duration;
+import java.time.Instant;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Stops sending requests to an endpoint that keeps failing. After {@code failureThreshold} transient failures in
+ * a row the breaker opens and no request is dispatched for {@code openDuration}. Then a single trial request is
+ * let through: its success closes the breaker again, its failure opens it for another period.
+ */
+@Flogger
+public class CircuitBreaker {
+
+    private final String name;
+    private final int failureThreshold;
+    private final Duration openDuration;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private Instant openUntil = Instant.EPOCH;
+    private boolean trialInFlight;
+
+    public CircuitBreaker(String name, int failureThreshold, Duration openDuration) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDuration = openDuration;
+    }
+
+    public static CircuitBreaker fromConfig(String name) {
+        return new CircuitBreaker(name,
+            CrawlerConfig.getInt("crawler.circuit.failure-threshold", 5),
+            Duration.ofSeconds(CrawlerConfig.getLong("crawler.circuit.open-seconds", 60)));
+    }
+
+    /**
+     * Returns the earliest time a request may be dispatched. While a trial request is running, the result of the
+     * trial has to be waited for.
+     */
+    public synchronized Instant permittedAt(Instant now) {
+        if (state == State.OPEN) {
+            if (openUntil.isAfter(now)) {
+                return openUntil;
+            }
+
+            state = State.HALF_OPEN;
+            log.atInfo().log("%s: circuit half open, sending a trial request", name);
+        }
+
+        if (state == State.HALF_OPEN && trialInFlight) {
+            return now.plusSeconds(1);
+        }
+        return now;
+    }
+
+    /**
+     * Must be called when a request is dispatched, so only one trial request runs while the circuit is half open.
+     */
+    public synchronized void onDispatch() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            log.atInfo().log("%s: circuit closed", name);
+        }
+
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInFlight = false;
+    }
+
+    /**
+     * Records a transient failure of a request.
+     */
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openUntil = Instant.now().plus(openDuration);
+            trialInFlight = false;
+            log.atWarning().log("%s: circuit open until %s after %d failures in a row", name, openUntil,
+                consecutiveFailures);
+        }
+    }
+
+    /**
+     * Records a request that neither proves nor disproves the health of the endpoint, e.g. a rate limited one.
+     */
+    public synchronized void recordNeutral() {
+        trialInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+}
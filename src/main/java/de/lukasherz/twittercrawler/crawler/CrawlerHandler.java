@@ -1,48 +1,151 @@
 package de.lukasherz.twittercrawler.crawler;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.twitter.clientlib.ApiException;
+import com.twitter.clientlib.ApiResponse;
 import com.twitter.clientlib.TwitterCredentialsBearer;
 import com.twitter.clientlib.api.TwitterApi;
+import com.twitter.clientlib.model.TweetCountsResponse;
 import com.twitter.clientlib.model.TweetSearchResponse;
 import com.twitter.clientlib.model.UsersFollowingLookupResponse;
+import de.lukasherz.twittercrawler.CrawlerConfig;
 import de.lukasherz.twittercrawler.TwitterCrawler;
-import de.lukasherz.twittercrawler.crawler.Request.Priority;
+import de.lukasherz.twittercrawler.crawler.DeadLetterStore.DeadLetter;
 import de.lukasherz.twittercrawler.crawler.requests.FollowsLookupRequest;
 import de.lukasherz.twittercrawler.crawler.requests.HashtagSearchRequest;
+import de.lukasherz.twittercrawler.crawler.stream.FilteredStreamIngester;
 import de.lukasherz.twittercrawler.data.database.DatabaseManager;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.Collections;
-import java.util.HashSet;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.flogger.Flogger;
 import org.apache.commons.lang3.NotImplementedException;
 
 @Flogger
 public class CrawlerHandler {
 
+    private static final Duration RECENT_SEARCH_WINDOW = Duration.ofDays(7);
+
     private static CrawlerHandler instance;
     private final DatabaseManager dm = DatabaseManager.getInstance();
-    private final HashSet<TwitterApi> apisBearer;
+    private final LinkedHashSet<TwitterApi> apisBearer;
     private final RequestPriorityQueue<TweetSearchResponse> searchRecentTweetsQueue;
     private final RequestPriorityQueue<UsersFollowingLookupResponse> followingUsersQueue;
-    private QueuedTimer<TweetSearchResponse> searchRecentTweetsTimer;
-    private QueuedTimer<UsersFollowingLookupResponse> followingUsersTimer;
+    // only holds the budgets of the tweet counts endpoint, the probes of the search slicer are sent right away
+    private final RequestPriorityQueue<TweetCountsResponse> tweetCountsQueue;
+    // users whose followings are crawled already or queued for crawling
+    private final LongSet followsLookupSeen;
+    private final Set<String> resumedHashtags;
+    private final FrontierJournal frontierJournal;
+    private final PersistencePipeline persistencePipeline;
+    private final RetryPolicy retryPolicy;
+    private final FollowsStopPolicy followsStopPolicy;
+    private final SearchSlicer searchSlicer;
+    private final DeadLetterStore deadLetterStore;
+    private final ScheduledExecutorService retryScheduler;
+    private final RequestExecutor<TweetSearchResponse> searchRecentTweetsExecutor;
+    private final RequestExecutor<UsersFollowingLookupResponse> followingUsersExecutor;
+    private FilteredStreamIngester streamIngester;
+    private Timer statusTimer;
+    private ScheduledExecutorService reconcileScheduler;
 
     private CrawlerHandler() {
         instance = this;
 
-        apisBearer = new HashSet<>();
-        for (String token : Collections.singleton(TwitterCrawler.TOKEN)) {
+        apisBearer = new LinkedHashSet<>();
+        for (String token : new LinkedHashSet<>(TwitterCrawler.ACTIVE_TOKENS)) {
             TwitterApi api = new TwitterApi();
             api.setTwitterCredentials(new TwitterCredentialsBearer(token));
             apisBearer.add(api);
         }
 
-        searchRecentTweetsQueue = new RequestPriorityQueue<>(apisBearer);
-        followingUsersQueue = new RequestPriorityQueue<>(apisBearer);
+        followsLookupSeen = LongSets.synchronize(loadFollowsLookupSeen());
+
+        frontierJournal = CrawlerConfig.getBoolean("crawler.frontier.enabled", true)
+            ? new FrontierJournal(Path.of(CrawlerConfig.getString("crawler.frontier.file", "frontier.journal")),
+            CrawlerConfig.getBoolean("crawler.frontier.fsync", true))
+            : null;
+
+        searchRecentTweetsQueue = new RequestPriorityQueue<>(apisBearer, frontierJournal,
+            CircuitBreaker.fromConfig("searchRecentTweets"));
+        followingUsersQueue = new RequestPriorityQueue<>(apisBearer, frontierJournal,
+            CircuitBreaker.fromConfig("followingUsers"));
+        tweetCountsQueue = new RequestPriorityQueue<>(apisBearer, null, CircuitBreaker.fromConfig("tweetCounts"));
+
+        retryPolicy = RetryPolicy.fromConfig();
+        followsStopPolicy = FollowsStopPolicy.fromConfig();
+        searchSlicer = SearchSlicer.fromConfig();
+        deadLetterStore = new DeadLetterStore(
+            Path.of(CrawlerConfig.getString("crawler.dead-letters.file", "dead-letters.journal")));
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("retryScheduler").setDaemon(true).build());
 
-        searchRecentTweetsTimer = new QueuedTimer<>(searchRecentTweetsQueue, "searchRecentTweetsTimer");
-        followingUsersTimer = new QueuedTimer<>(followingUsersQueue, "followingUsersTimer");
+        resumedHashtags = ConcurrentHashMap.newKeySet();
+        resumeFrontier();
+
+        persistencePipeline = new PersistencePipeline(
+            CrawlerConfig.getInt("crawler.pipeline.capacity", 64),
+            CrawlerConfig.getInt("crawler.pipeline.workers", 2));
+
+        int inFlightPerToken = CrawlerConfig.getInt("crawler.executor.inflight-per-token", 2);
+        searchRecentTweetsExecutor = new RequestExecutor<>(searchRecentTweetsQueue, persistencePipeline,
+            "searchRecentTweets", apisBearer.size() * inFlightPerToken);
+        followingUsersExecutor = new RequestExecutor<>(followingUsersQueue, persistencePipeline,
+            "followingUsers", apisBearer.size() * inFlightPerToken);
+    }
+
+    private LongSet loadFollowsLookupSeen() {
+        try {
+            LongSet seen = dm.getAllFollowingUserIds();
+            log.atInfo().log("Loaded %d users with known followings", seen.size());
+            return seen;
+        } catch (SQLException e) {
+            log.atSevere().withCause(e).log("Could not load users with known followings");
+            return new LongOpenHashSet();
+        }
+    }
+
+    private void resumeFrontier() {
+        if (frontierJournal == null) return;
+
+        try {
+            for (Request<?> request : frontierJournal.replay(searchRecentTweetsQueue, followingUsersQueue)) {
+                if (request instanceof FollowsLookupRequest flr) {
+                    followsLookupSeen.add(flr.getUserId());
+                    followingUsersQueue.offer(flr);
+                } else if (request instanceof HashtagSearchRequest hsr) {
+                    resumedHashtags.add(hsr.getHashtag());
+                    if (hsr.isSliced()) {
+                        searchSlicer.register(hsr.getHashtag(),
+                            new SearchSlicer.Slice(hsr.getStartTime(), hsr.getEndTime(), hsr.getTotalCountLeft()),
+                            true);
+                    }
+                    searchRecentTweetsQueue.offer(hsr);
+                } else {
+                    throw new NotImplementedException("Not implemented yet");
+                }
+            }
+        } catch (IOException e) {
+            log.atSevere().withCause(e).log("Could not resume the crawl frontier, starting from scratch");
+        }
     }
 
     public static CrawlerHandler getInstance() {
@@ -52,65 +155,385 @@ public class CrawlerHandler {
         return instance;
     }
 
-    public void startSchedulers() {
-        searchRecentTweetsTimer.start();
-        followingUsersTimer.start();
+    public synchronized void startSchedulers() {
+        persistencePipeline.start();
+        searchRecentTweetsExecutor.start();
+        followingUsersExecutor.start();
+        if (streamIngester != null) {
+            streamIngester.start();
+        }
+
+        if (statusTimer != null) return;
 
-        new Timer().scheduleAtFixedRate(
+        // the following counts are maintained while followings are written, this corrects any drift
+        long reconcileMinutes = CrawlerConfig.getLong("crawler.aggregation.reconcile-minutes", 60);
+        if (reconcileMinutes > 0) {
+            reconcileScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("followingCountsReconciler").setDaemon(true).build());
+            reconcileScheduler.scheduleWithFixedDelay(this::reconcileFollowingCounts, reconcileMinutes,
+                reconcileMinutes, TimeUnit.MINUTES);
+        }
+
+        statusTimer = new Timer("crawlerStatus", true);
+        statusTimer.scheduleAtFixedRate(
             new TimerTask() {
                 @Override public void run() {
-                    System.out.println("\nCurrently queued requests: \n");
+                    // every token has its own rate limit window per endpoint
+                    double searchPerWindow = 450. * apisBearer.size();
+                    double followingPerWindow = 15. * apisBearer.size();
+
+                    System.out.println("\nCurrently queued requests (" + apisBearer.size() + " tokens): \n");
                     System.out.println("Search recent tweets: " + searchRecentTweetsQueue.size()
-                        + " takes approximately " + (Math.ceil(searchRecentTweetsQueue.size() / 450.) * 15.)
+                        + " takes approximately " + (Math.ceil(searchRecentTweetsQueue.size() / searchPerWindow) * 15.)
                         + " minutes");
                     System.out.println("Following users: " + followingUsersQueue.size()
-                        + " takes approximately " + (Math.ceil(followingUsersQueue.size() / 15.) * 15.) + " minutes");
+                        + " takes approximately " + (Math.ceil(followingUsersQueue.size() / followingPerWindow) * 15.)
+                        + " minutes");
 
                     System.out.println("Total requests: " + (searchRecentTweetsQueue.size()
                         + followingUsersQueue.size()));
+                    System.out.println("In flight: " + (searchRecentTweetsExecutor.getInFlight()
+                        + followingUsersExecutor.getInFlight()));
+                    System.out.println("Waiting for persistence: " + persistencePipeline.size()
+                        + " results, " + dm.getWriteBehindBuffer().getPendingRows() + " buffered rows");
+                    System.out.println("Lookup cache hit rate: users "
+                        + String.format("%.2f", dm.getUserCacheStats().hitRate()) + ", tweets "
+                        + String.format("%.2f", dm.getTweetCacheStats().hitRate()));
+                    System.out.println("Search requests per job: " + searchRecentTweetsQueue.getJobSizes());
+                    System.out.println("Following requests per job: " + followingUsersQueue.getJobSizes());
+                    if (searchSlicer.isEnabled()) {
+                        System.out.println("Search slices: " + searchSlicer.getProgress());
+                    }
+                    System.out.println("Users whose followings stopped early: "
+                        + followsStopPolicy.getStoppedEarly());
+                    System.out.println("Circuits: search " + searchRecentTweetsQueue.getCircuitBreaker().getState()
+                        + ", following " + followingUsersQueue.getCircuitBreaker().getState());
+                    if (streamIngester != null) {
+                        System.out.println("Filtered stream running: " + streamIngester.isRunning());
+                    }
 
                     System.out.println(
                         "Total time: " + (
-                            Math.ceil(searchRecentTweetsQueue.size() / 450.) * 15.
-                                + Math.ceil(followingUsersQueue.size() / 15.) * 15.) + " minutes");
+                            Math.ceil(searchRecentTweetsQueue.size() / searchPerWindow) * 15.
+                                + Math.ceil(followingUsersQueue.size() / followingPerWindow) * 15.) + " minutes");
                     System.out.println(
                         "Total time (worst case): " + (
-                            Math.ceil(searchRecentTweetsQueue.size() * 1100 / 450.) * 15.
-                                + Math.ceil(followingUsersQueue.size() * 10 / 15.) * 15.) + " minutes");
+                            Math.ceil(searchRecentTweetsQueue.size() * 1100 / searchPerWindow) * 15.
+                                + Math.ceil(followingUsersQueue.size() * 10 / followingPerWindow) * 15.) + " minutes");
                     System.out.println(
                         "Total time (worst case): " + (
-                            Math.ceil(searchRecentTweetsQueue.size() * 1100 / 450.) * 15.
-                                + Math.ceil(followingUsersQueue.size() * 10 / 15.) * 15.) / 60. + " hours");
+                            Math.ceil(searchRecentTweetsQueue.size() * 1100 / searchPerWindow) * 15.
+                                + Math.ceil(followingUsersQueue.size() * 10 / followingPerWindow) * 15.) / 60.
+                            + " hours");
                     System.out.println(
                         "Total time (worst case): " + (
-                            Math.ceil(searchRecentTweetsQueue.size() * 1100 / 450.) * 15.
-                                + Math.ceil(followingUsersQueue.size() * 10 / 15.) * 15.) / 60. / 24. + " days");
+                            Math.ceil(searchRecentTweetsQueue.size() * 1100 / searchPerWindow) * 15.
+                                + Math.ceil(followingUsersQueue.size() * 10 / followingPerWindow) * 15.) / 60. / 24.
+                            + " days");
                     System.out.println("\n");
                 }
             }, 0, 10000);
     }
 
-    public void handleRateLimit(Request<?> request, Instant nextRequestAllowed) {
+    public synchronized void stopSchedulers() {
+        log.atInfo().log("Stopping schedulers...");
+
+        if (statusTimer != null) {
+            statusTimer.cancel();
+            statusTimer = null;
+        }
+        if (reconcileScheduler != null) {
+            reconcileScheduler.shutdownNow();
+            reconcileScheduler = null;
+        }
+
+        if (streamIngester != null) {
+            streamIngester.stop();
+        }
+
+        searchRecentTweetsExecutor.stop();
+        followingUsersExecutor.stop();
+        persistencePipeline.stop();
+        // the buffered rows are written before the journal is closed, their requests are marked done then
+        dm.getWriteBehindBuffer().close();
+
+        if (frontierJournal != null) {
+            frontierJournal.close();
+        }
+
+        log.atInfo().log("Schedulers stopped");
+    }
+
+    private void reconcileFollowingCounts() {
+        try {
+            dm.reconcileFollowingCounts();
+        } catch (SQLException e) {
+            log.atWarning().withCause(e).log("Could not reconcile the following counts");
+        }
+    }
+
+    /**
+     * Captures the hashtags from the filtered stream instead of the recent search. The stream is started together
+     * with the schedulers, which still crawl the followings of the captured users.
+     */
+    public synchronized void addHashtagStream(List<String> hashtags) {
+        if (streamIngester != null) {
+            throw new IllegalStateException("Filtered stream is already configured");
+        }
+
+        // only one stream connection is allowed per app, the first token is used for it
+        streamIngester = new FilteredStreamIngester(
+            CrawlerConfig.getString("crawler.stream.base-url", "https://api.twitter.com"),
+            TwitterCrawler.ACTIVE_TOKENS.get(0),
+            hashtags,
+            searchRecentTweetsQueue,
+            persistencePipeline,
+            CrawlerConfig.getInt("crawler.stream.batch-size", 100),
+            Duration.ofMillis(CrawlerConfig.getLong("crawler.stream.batch-timeout-ms", 1000)),
+            CrawlerConfig.getBoolean("crawler.stream.backfill", false));
+    }
+
+    public void handleRateLimit(Request<?> request, TwitterApi api, Instant nextRequestAllowed) {
         log.atInfo().log("Rate limit reached for %s: %s", request.getClass().getSimpleName(), nextRequestAllowed);
-        request.setPriority(Priority.HIGHEST);
 
+        // only the token that hit the limit is blocked, the others keep serving the queue. The request keeps its
+        // original queue position and is therefore served before everything queued after it in its job.
         if (request instanceof FollowsLookupRequest) {
-            followingUsersQueue.setTimeForCurrentEntry(nextRequestAllowed);
+            followingUsersQueue.getCircuitBreaker().recordNeutral();
+            followingUsersQueue.setTimeForApi(api, nextRequestAllowed);
             followingUsersQueue.offer((Request<UsersFollowingLookupResponse>) request);
         } else if (request instanceof HashtagSearchRequest) {
-            searchRecentTweetsQueue.setTimeForCurrentEntry(nextRequestAllowed);
+            searchRecentTweetsQueue.getCircuitBreaker().recordNeutral();
+            searchRecentTweetsQueue.setTimeForApi(api, nextRequestAllowed);
             searchRecentTweetsQueue.offer((Request<TweetSearchResponse>) request);
         } else {
             throw new NotImplementedException("Not implemented yet");
         }
     }
 
+    /**
+     * Handles a failed request that was not rate limited. Transient failures count against the circuit breaker of
+     * the endpoint and are retried with backoff, everything else ends in the dead letters.
+     */
+    public void handleFailure(Request<?> request, ApiException e) {
+        RequestPriorityQueue<?> queue;
+        if (request instanceof FollowsLookupRequest) {
+            queue = followingUsersQueue;
+        } else if (request instanceof HashtagSearchRequest) {
+            queue = searchRecentTweetsQueue;
+        } else {
+            throw new NotImplementedException("Not implemented yet");
+        }
+
+        if (retryPolicy.isTransient(e)) {
+            queue.getCircuitBreaker().recordFailure();
+        } else {
+            queue.getCircuitBreaker().recordNeutral();
+        }
+
+        if (retryPolicy.shouldRetry(e, request.getAttempts())) {
+            Duration delay = retryPolicy.getDelay(request.getAttempts());
+            request.setAttempts(request.getAttempts() + 1);
+            log.atWarning().log("%s failed with %d, retry %d/%d in %s", request.getClass().getSimpleName(),
+                e.getCode(), request.getAttempts(), retryPolicy.getMaxAttempts(), delay);
+
+            // the request is still journaled as pending, so a restart in between retries it as well
+            retryScheduler.schedule(() -> requeue(request), delay.toMillis(), TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        deadLetterStore.add(request, e.getCode() + " " + e.getMessage() + " " + e.getResponseBody());
+        if (request instanceof FollowsLookupRequest flr) {
+            followingUsersQueue.complete(flr);
+        } else if (request instanceof HashtagSearchRequest hsr) {
+            if (hsr.isSliced()) {
+                searchSlicer.finish(hsr.getHashtag(), hsr.getStartTime(), hsr.getEndTime(), false, null);
+            }
+            searchRecentTweetsQueue.complete(hsr);
+        }
+    }
+
+    private void requeue(Request<?> request) {
+        if (request instanceof FollowsLookupRequest flr) {
+            followingUsersQueue.offer(flr);
+        } else if (request instanceof HashtagSearchRequest hsr) {
+            searchRecentTweetsQueue.offer(hsr);
+        } else {
+            throw new NotImplementedException("Not implemented yet");
+        }
+    }
+
+    public SearchSlicer getSearchSlicer() {
+        return searchSlicer;
+    }
+
+    public FollowsStopPolicy getFollowsStopPolicy() {
+        return followsStopPolicy;
+    }
+
+    public List<DeadLetter> getDeadLetters() throws IOException {
+        return deadLetterStore.list(searchRecentTweetsQueue, followingUsersQueue);
+    }
+
+    /**
+     * Queues all dead letters again and removes them from the dead letter file.
+     *
+     * @return the number of queued requests
+     */
+    public int replayDeadLetters() throws IOException {
+        List<DeadLetter> deadLetters = getDeadLetters();
+        deadLetterStore.clear();
+
+        for (DeadLetter deadLetter : deadLetters) {
+            Request<?> request = deadLetter.request();
+            if (request instanceof FollowsLookupRequest flr) {
+                followsLookupSeen.add(flr.getUserId());
+            }
+            requeue(request);
+        }
+
+        log.atInfo().log("Queued %d dead letters again", deadLetters.size());
+        return deadLetters.size();
+    }
+
     public void addHashtagSearchToQuery(String hashtag, int count) {
-        searchRecentTweetsQueue.offer(new HashtagSearchRequest(searchRecentTweetsQueue, hashtag, count));
+        if (resumedHashtags.contains(hashtag)) {
+            log.atInfo().log("Search for %s is resumed from the frontier journal", hashtag);
+            return;
+        }
+
+        Long sinceId = getHighWaterMark(HashtagSearchRequest.buildQuery(hashtag));
+        if (sinceId != null) {
+            log.atInfo().log("Crawling %s incrementally from tweet %d", hashtag, sinceId);
+        }
+
+        if (searchSlicer.isEnabled() && addSlicedHashtagSearch(hashtag, count, sinceId)) return;
+
+        searchRecentTweetsQueue.offer(new HashtagSearchRequest(searchRecentTweetsQueue, hashtag, count, sinceId));
+    }
+
+    /**
+     * Queues the search as time slices that are paged in parallel. Returns false if the tweet counts of the hashtag
+     * could not be probed, it is searched as one pagination chain then.
+     */
+    private boolean addSlicedHashtagSearch(String hashtag, int count, Long sinceId) {
+        // the slices replace the since_id, which the recent search would prefer over their start times
+        Instant windowStart = Instant.now().minus(RECENT_SEARCH_WINDOW).plus(1, ChronoUnit.MINUTES);
+        Instant start = sinceId != null ? Snowflake.toInstant(sinceId + 1) : windowStart;
+        // the end time has to be at least 10 seconds before the request
+        Instant end = Instant.now().minusSeconds(30);
+
+        TweetCountsResponse counts = probeTweetCounts(HashtagSearchRequest.buildQuery(hashtag), start, end);
+        if (counts == null) {
+            log.atWarning().log("Could not probe the tweet counts of %s, searching it unsliced", hashtag);
+            return false;
+        }
+        List<SearchSlicer.Slice> slices = searchSlicer.plan(counts, start, end, count);
+
+        // all slices are known before the first one can finish
+        slices.forEach(slice -> searchSlicer.register(hashtag, slice, false));
+        for (SearchSlicer.Slice slice : slices) {
+            searchRecentTweetsQueue.offer(new HashtagSearchRequest(searchRecentTweetsQueue, hashtag,
+                Math.max(10, slice.expectedTweets()), slice.start(), slice.end()));
+        }
+        log.atInfo().log("Searching %s in %d time slices", hashtag, slices.size());
+        return true;
+    }
+
+    /**
+     * Requests the hourly tweet counts of the query with a token of the counts budget. Rate limited tokens are
+     * blocked like for any request and transient failures are retried with backoff. Returns null if no token may
+     * send the request or it failed for good.
+     */
+    private TweetCountsResponse probeTweetCounts(String query, Instant start, Instant end) {
+        CircuitBreaker circuitBreaker = tweetCountsQueue.getCircuitBreaker();
+
+        for (int attempt = 0; ; ) {
+            Optional<TwitterApi> api = tweetCountsQueue.tryAcquireApi();
+            if (api.isEmpty()) return null;
+
+            circuitBreaker.onDispatch();
+            Map<String, List<String>> headers = null;
+            ApiException failure;
+            try {
+                ApiResponse<TweetCountsResponse> response = api.get().tweets().tweetCountsRecentSearchWithHttpInfo(
+                    query, start.atOffset(ZoneOffset.UTC), end.atOffset(ZoneOffset.UTC), null, null, null, null,
+                    "hour");
+                headers = response.getHeaders();
+                circuitBreaker.recordSuccess();
+                return response.getData();
+            } catch (ApiException e) {
+                headers = e.getResponseHeaders();
+                failure = e;
+            } finally {
+                tweetCountsQueue.updateRateLimit(api.get(), headers);
+            }
+
+            if (failure.getCode() == 429 && RateLimitBudget.hasRateLimitHeaders(headers)) {
+                // another token may still have budget
+                circuitBreaker.recordNeutral();
+                tweetCountsQueue.setTimeForApi(api.get(), RateLimitBudget.getReset(headers));
+                continue;
+            }
+
+            if (retryPolicy.isTransient(failure)) {
+                circuitBreaker.recordFailure();
+            } else {
+                circuitBreaker.recordNeutral();
+            }
+
+            if (!retryPolicy.shouldRetry(failure, attempt)) {
+                log.atWarning().withCause(failure).log("Probing the tweet counts of \"%s\" failed with %d", query,
+                    failure.getCode());
+                return null;
+            }
+
+            try {
+                Thread.sleep(retryPolicy.getDelay(attempt++).toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns the high-water mark of the query if it can still be used with the recent search.
+     */
+    private Long getHighWaterMark(String query) {
+        Optional<Long> mark;
+        try {
+            mark = dm.getSearchHighWaterMark(query);
+        } catch (SQLException e) {
+            log.atWarning().withCause(e).log("Could not load high-water mark of query \"%s\"", query);
+            return null;
+        }
+
+        // the recent search rejects since_ids outside its window, the whole window is crawled then
+        Instant windowStart = Instant.now().minus(RECENT_SEARCH_WINDOW).plus(1, ChronoUnit.MINUTES);
+        if (mark.isEmpty() || Snowflake.toInstant(mark.get()).isBefore(windowStart)) {
+            return null;
+        }
+        return mark.get();
     }
 
     public void addFollowsLookupToQuery(long userId) {
-        //TODO: check if already computed
-        followingUsersQueue.offer(new FollowsLookupRequest(followingUsersQueue, userId, 10000));
+        addFollowsLookupToQuery(userId, "default");
+    }
+
+    /**
+     * Queues a follows lookup for the given user.
+     *
+     * @param jobId the job that discovered the user, usually the hashtag whose search found it
+     */
+    public void addFollowsLookupToQuery(long userId, String jobId) {
+        if (!followsLookupSeen.add(userId)) {
+            log.atFinest().log("Skipping follows lookup for %d, already crawled or queued", userId);
+            return;
+        }
+
+        FollowsLookupRequest request = new FollowsLookupRequest(followingUsersQueue, userId, 10000);
+        request.setJobId(jobId);
+        followingUsersQueue.offer(request);
     }
 }
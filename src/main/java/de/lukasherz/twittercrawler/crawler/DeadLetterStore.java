@@ -0,0 +1,111 @@
+package de.lukasherz.twittercrawler.crawler;
+
+import com.twitter.clientlib.model.TweetSearchResponse;
+import com.twitter.clientlib.model.UsersFollowingLookupResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * File of the requests that failed for good, either with a permanent error or after all retries. The requests are
+ * stored in the format of the {@link FrontierJournal}, so they can be listed and queued again later. The file is kept
+ * across crawler updates, so every record carries the journal version it was written with.
+ */
+@Flogger
+public class DeadLetterStore {
+
+    private static final int MAGIC = 0x54574344; // "TWCD"
+    private static final int MAX_REASON_LENGTH = 1000;
+
+    private final Path file;
+
+    public DeadLetterStore(Path file) {
+        this.file = file;
+    }
+
+    public synchronized void add(Request<?> request, String reason) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(reason == null ? "" : reason.substring(0, Math.min(reason.length(), MAX_REASON_LENGTH)));
+            out.writeInt(request.getAttempts());
+            FrontierJournal.encode(out, request);
+
+            boolean exists = Files.exists(file);
+            try (DataOutputStream fileOut = new DataOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+                if (!exists) {
+                    fileOut.writeInt(MAGIC);
+                }
+                fileOut.writeByte(FrontierJournal.VERSION);
+                fileOut.writeInt(bytes.size());
+                bytes.writeTo(fileOut);
+            }
+
+            log.atWarning().log("Request %s moved to the dead letters: %s", request, reason);
+        } catch (IOException e) {
+            log.atSevere().withCause(e).log("Could not store dead letter %s", request);
+        }
+    }
+
+    /**
+     * Reads all dead letters. The requests are recreated for the given queues but not queued.
+     */
+    public synchronized List<DeadLetter> list(RequestPriorityQueue<TweetSearchResponse> searchQueue,
+                                              RequestPriorityQueue<UsersFollowingLookupResponse> followsQueue)
+        throws IOException {
+        List<DeadLetter> deadLetters = new ArrayList<>();
+        if (!Files.exists(file)) return deadLetters;
+
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a dead letter file");
+            }
+
+            while (true) {
+                byte[] record;
+                try {
+                    byte version = in.readByte();
+                    if (version != FrontierJournal.VERSION) {
+                        throw new IOException("Unsupported dead letter version " + version + " in " + file);
+                    }
+                    int length = in.readInt();
+                    record = in.readNBytes(length);
+                    if (record.length != length) break;
+                } catch (EOFException e) {
+                    break;
+                }
+
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                deadLetters.add(new DeadLetter(
+                    Instant.ofEpochMilli(recordIn.readLong()),
+                    recordIn.readUTF(),
+                    recordIn.readInt(),
+                    FrontierJournal.decode(recordIn, searchQueue, followsQueue)));
+            }
+        }
+
+        return deadLetters;
+    }
+
+    /**
+     * Removes all dead letters, e.g. after they were queued again.
+     */
+    public synchronized void clear() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    public record DeadLetter(Instant failedAt, String reason, int attempts, Request<?> request) {
+    }
+}
@@ -0,0 +1,112 @@
+package de.lukasherz.twittercrawler.crawler;
+
+import de.lukasherz.twittercrawler.CrawlerConfig;
+import de.lukasherz.twittercrawler.data.aggregation.SeedAccounts;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Decides whether the followings of a user are paged further. The followings are only crawled to classify the user
+ * by the seed accounts they follow, so paging stops once the share of the larger side is certain enough, that is the
+ * lower bound of its Wilson score interval reaches the confidence, or once the user used up the page budget. The
+ * calls that are not made serve other users instead.
+ */
+@Flogger
+public class FollowsStopPolicy {
+
+    private final boolean enabled;
+    private final SeedAccounts seeds;
+    private final int maxPages;
+    private final int minSeedFollowings;
+    private final double confidence;
+    private final double z;
+    private final AtomicLong stoppedEarly = new AtomicLong();
+
+    public FollowsStopPolicy(boolean enabled, SeedAccounts seeds, int maxPages, int minSeedFollowings,
+                             double confidence, double z) {
+        this.enabled = enabled;
+        this.seeds = seeds;
+        this.maxPages = maxPages;
+        this.minSeedFollowings = minSeedFollowings;
+        this.confidence = confidence;
+        this.z = z;
+    }
+
+    public static FollowsStopPolicy fromConfig() {
+        boolean enabled = CrawlerConfig.getBoolean("crawler.follows.early-stop.enabled", false);
+        SeedAccounts seeds = SeedAccounts.NONE;
+
+        if (enabled) {
+            try {
+                seeds = SeedAccounts.fromConfig();
+            } catch (IOException e) {
+                log.atWarning().withCause(e).log("Could not load the seed accounts, followings are paged to the end");
+                enabled = false;
+            }
+        }
+
+        return new FollowsStopPolicy(enabled, seeds,
+            CrawlerConfig.getInt("crawler.follows.early-stop.max-pages", 0),
+            CrawlerConfig.getInt("crawler.follows.early-stop.min-seed-followings", 5),
+            CrawlerConfig.getDouble("crawler.follows.early-stop.confidence", 0.7),
+            CrawlerConfig.getDouble("crawler.follows.early-stop.z", 1.96));
+    }
+
+    /**
+     * Adds a page of followed user ids to the score of the pages before.
+     */
+    public Score score(Score previous, List<Long> followingIds) {
+        int democrat = previous.democrat();
+        int republican = previous.republican();
+        for (long followingId : followingIds) {
+            if (seeds.isDemocrat(followingId)) democrat++;
+            if (seeds.isRepublican(followingId)) republican++;
+        }
+        return new Score(previous.pages() + 1, democrat, republican);
+    }
+
+    /**
+     * Returns whether the next page is skipped. Only a skipped page that exists counts as an early stop, so
+     * {@code morePages} tells whether the user has more followings.
+     */
+    public boolean shouldStop(Score score, boolean morePages) {
+        if (!enabled || !morePages) return false;
+
+        int seedFollowings = score.democrat() + score.republican();
+        boolean stop = (maxPages > 0 && score.pages() >= maxPages)
+            || (seedFollowings >= minSeedFollowings
+            && wilsonLowerBound(Math.max(score.democrat(), score.republican()), seedFollowings) >= confidence);
+
+        if (stop) {
+            stoppedEarly.incrementAndGet();
+        }
+        return stop;
+    }
+
+    /**
+     * Returns the lower bound of the Wilson score interval of the share of {@code successes} in {@code trials}.
+     */
+    double wilsonLowerBound(int successes, int trials) {
+        double p = (double) successes / trials;
+        double z2 = z * z;
+        return (p + z2 / (2 * trials) - z * Math.sqrt(p * (1 - p) / trials + z2 / (4. * trials * trials)))
+            / (1 + z2 / trials);
+    }
+
+    /**
+     * Returns the number of users whose followings were not paged to the end although there were more pages.
+     */
+    public long getStoppedEarly() {
+        return stoppedEarly.get();
+    }
+
+    /**
+     * The pages of a user's followings crawled so far and how many democrat and republican seed accounts they
+     * contained.
+     */
+    public record Score(int pages, int democrat, int republican) {
+        public static final Score EMPTY = new Score(0, 0, 0);
+    }
+}
@@ -0,0 +1,308 @@
+package de.lukasherz.twittercrawler.crawler;
+
+import com.twitter.clientlib.model.TweetSearchResponse;
+import com.twitter.clientlib.model.UsersFollowingLookupResponse;
+import de.lukasherz.twittercrawler.crawler.FollowsStopPolicy.Score;
+import de.lukasherz.twittercrawler.crawler.Request.Priority;
+import de.lukasherz.twittercrawler.crawler.requests.FollowsLookupRequest;
+import de.lukasherz.twittercrawler.crawler.requests.HashtagSearchRequest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.flogger.Flogger;
+import org.apache.commons.lang3.NotImplementedException;
+
+/**
+ * Append-only journal of the crawl frontier. Every request that enters a {@link RequestPriorityQueue} is written
+ * as an ADD record together with its pagination token, and a DONE record follows once its result is persisted.
+ * On startup the journal is replayed, the requests without DONE record are queued again and the file is compacted
+ * to those requests.
+ */
+@Flogger
+public class FrontierJournal {
+
+    private static final int MAGIC = 0x54574346; // "TWCF"
+    static final byte VERSION = 1;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_DONE = 2;
+
+    private static final byte TYPE_HASHTAG_SEARCH = 1;
+    private static final byte TYPE_FOLLOWS_LOOKUP = 2;
+
+    private final Path file;
+    private final boolean fsync;
+    private FileChannel channel;
+    private long nextId = 1;
+
+    public FrontierJournal(Path file, boolean fsync) {
+        this.file = file;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Reads the journal, recreates every request that was not completed yet and compacts the file. Must be called
+     * once before anything is recorded.
+     */
+    public synchronized List<Request<?>> replay(RequestPriorityQueue<TweetSearchResponse> searchQueue,
+                                                RequestPriorityQueue<UsersFollowingLookupResponse> followsQueue)
+        throws IOException {
+        Map<Long, Request<?>> pending = new LinkedHashMap<>();
+
+        if (Files.exists(file)) {
+            try {
+                readPending(pending, searchQueue, followsQueue);
+            } catch (IOException | RuntimeException e) {
+                Path corrupt = file.resolveSibling(file.getFileName() + ".corrupt-" + System.currentTimeMillis());
+                log.atSevere().withCause(e).log("Could not read %s, moving it to %s", file, corrupt);
+                Files.move(file, corrupt);
+                pending.clear();
+            }
+        }
+
+        compact(pending.values());
+        log.atInfo().log("Replayed %d pending requests from %s", pending.size(), file);
+
+        return new ArrayList<>(pending.values());
+    }
+
+    private void readPending(Map<Long, Request<?>> pending,
+                             RequestPriorityQueue<TweetSearchResponse> searchQueue,
+                             RequestPriorityQueue<UsersFollowingLookupResponse> followsQueue) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            readHeader(in);
+
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    record = in.readNBytes(length);
+                    if (record.length != length) {
+                        log.atWarning().log("Ignoring truncated record at the end of %s", file);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                byte op = recordIn.readByte();
+                long id = recordIn.readLong();
+                nextId = Math.max(nextId, id + 1);
+
+                if (op == OP_ADD) {
+                    Request<?> request = decode(recordIn, searchQueue, followsQueue);
+                    request.setJournalId(id);
+                    pending.put(id, request);
+                } else if (op == OP_DONE) {
+                    pending.remove(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Journals a request that enters a queue. Requests that are queued again (e.g. after a rate limit) keep their
+     * original record.
+     */
+    public synchronized void recordOffer(Request<?> request) {
+        if (request.getJournalId() != 0) return;
+
+        request.setJournalId(nextId++);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(OP_ADD);
+            out.writeLong(request.getJournalId());
+            encode(out, request);
+            append(bytes.toByteArray(), fsync);
+        } catch (IOException e) {
+            log.atSevere().withCause(e).log("Could not journal request %s", request);
+        }
+    }
+
+    public synchronized void recordDone(Request<?> request) {
+        if (request.getJournalId() == 0) return;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(OP_DONE);
+            out.writeLong(request.getJournalId());
+            append(bytes.toByteArray(), fsync);
+        } catch (IOException e) {
+            log.atSevere().withCause(e).log("Could not journal completion of request %s", request);
+        }
+    }
+
+    public synchronized void close() {
+        if (channel == null) return;
+
+        try {
+            channel.force(true);
+            channel.close();
+        } catch (IOException e) {
+            log.atWarning().withCause(e).log("Could not close %s", file);
+        }
+        channel = null;
+    }
+
+    private void append(byte[] record, boolean force) throws IOException {
+        if (channel == null) {
+            throw new IOException("journal " + file + " is not open");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + record.length);
+        buffer.putInt(record.length);
+        buffer.put(record);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        if (force) {
+            channel.force(false);
+        }
+    }
+
+    private void compact(Iterable<Request<?>> pending) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel = out;
+            writeHeader();
+            for (Request<?> request : pending) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream recordOut = new DataOutputStream(bytes);
+                recordOut.writeByte(OP_ADD);
+                recordOut.writeLong(request.getJournalId());
+                encode(recordOut, request);
+                append(bytes.toByteArray(), false);
+            }
+            out.force(true);
+        } finally {
+            channel = null;
+        }
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + 1);
+        header.putInt(MAGIC);
+        header.put(VERSION);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private void readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException(file + " is not a frontier journal");
+        }
+
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported frontier journal version " + version + " in " + file);
+        }
+    }
+
+    static void encode(DataOutputStream out, Request<?> request) throws IOException {
+        if (request instanceof HashtagSearchRequest hsr) {
+            out.writeByte(TYPE_HASHTAG_SEARCH);
+            out.writeByte(hsr.getPriority().ordinal());
+            out.writeUTF(hsr.getJobId());
+            out.writeUTF(hsr.getHashtag());
+            out.writeInt(hsr.getTotalCountLeft());
+            writeNullableString(out, hsr.getToken());
+            writeNullableString(out, hsr.getSinceId());
+            writeNullableInstant(out, hsr.getStartTime());
+            writeNullableInstant(out, hsr.getEndTime());
+            writeNullableString(out, hsr.getNewestId());
+        } else if (request instanceof FollowsLookupRequest flr) {
+            out.writeByte(TYPE_FOLLOWS_LOOKUP);
+            out.writeByte(flr.getPriority().ordinal());
+            out.writeUTF(flr.getJobId());
+            out.writeLong(flr.getUserId());
+            out.writeInt(flr.getTotalCountLeft());
+            writeNullableString(out, flr.getToken());
+            out.writeInt(flr.getScore().pages());
+            out.writeInt(flr.getScore().democrat());
+            out.writeInt(flr.getScore().republican());
+        } else {
+            throw new NotImplementedException("Not implemented yet");
+        }
+    }
+
+    static Request<?> decode(DataInputStream in,
+                             RequestPriorityQueue<TweetSearchResponse> searchQueue,
+                             RequestPriorityQueue<UsersFollowingLookupResponse> followsQueue)
+        throws IOException {
+        byte type = in.readByte();
+        Priority priority = Priority.values()[in.readByte()];
+        String jobId = in.readUTF();
+
+        Request<?> request = switch (type) {
+            case TYPE_HASHTAG_SEARCH -> HashtagSearchRequest.resume(
+                searchQueue,
+                in.readUTF(),
+                in.readInt(),
+                readNullableString(in),
+                readNullableString(in),
+                readNullableInstant(in),
+                readNullableInstant(in),
+                readNullableString(in));
+            case TYPE_FOLLOWS_LOOKUP -> FollowsLookupRequest.resume(
+                followsQueue,
+                in.readLong(),
+                in.readInt(),
+                readNullableString(in),
+                new Score(in.readInt(), in.readInt(), in.readInt()));
+            default -> throw new IOException("Unknown request type " + type + " in frontier journal");
+        };
+
+        request.setPriority(priority);
+        request.setJobId(jobId);
+        return request;
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableInstant(DataOutputStream out, Instant value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.toEpochMilli());
+        }
+    }
+
+    private static Instant readNullableInstant(DataInputStream in) throws IOException {
+        return in.readBoolean() ? Instant.ofEpochMilli(in.readLong()) : null;
+    }
+}
@@ -0,0 +1,117 @@
+package de.lukasherz.twittercrawler.crawler;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Hands fetched api results over to a separate pool of persistence workers. The hand-off queue is bounded: when
+ * the database falls behind, {@link #submit(Request, Object, Runnable)} blocks the fetching worker, which in turn
+ * stops the {@link RequestExecutor} from dispatching further requests.
+ */
+@Flogger
+public class PersistencePipeline {
+
+    private final BlockingQueue<PendingResult<?>> queue;
+    private final int workerCount;
+    private ExecutorService workers;
+    private volatile boolean running;
+
+    public PersistencePipeline(int capacity, int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be at least 1");
+        }
+
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.workerCount = workerCount;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+
+        running = true;
+        workers = Executors.newFixedThreadPool(workerCount,
+            new ThreadFactoryBuilder().setNameFormat("persistence-worker-%d").build());
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(this::work);
+        }
+    }
+
+    /**
+     * Persists everything that is still queued and stops the workers afterwards.
+     */
+    public void stop() {
+        ExecutorService workers;
+
+        synchronized (this) {
+            if (!running) return;
+
+            running = false;
+            workers = this.workers;
+            this.workers = null;
+        }
+
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(5, TimeUnit.MINUTES)) {
+                log.atWarning().log("Persistence workers did not finish, %d results are lost", queue.size());
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues the result for persistence, blocking while the queue is full.
+     *
+     * @param onPersisted called once the result is stored
+     */
+    public <T> void submit(Request<T> request, T result, Runnable onPersisted) throws InterruptedException {
+        PendingResult<T> pending = new PendingResult<>(request, result, onPersisted);
+
+        if (!running) {
+            // nobody would consume it, persist on the calling thread instead
+            pending.process();
+            return;
+        }
+
+        queue.put(pending);
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    private void work() {
+        while (running || !queue.isEmpty()) {
+            PendingResult<?> pending;
+            try {
+                pending = queue.poll(500, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (pending == null) continue;
+
+            try {
+                pending.process();
+            } catch (RuntimeException e) {
+                log.atSevere().withCause(e).log("Could not persist result of %s", pending.request());
+            }
+        }
+    }
+
+    private record PendingResult<T>(Request<T> request, T result, Runnable onPersisted) {
+
+        void process() {
+            request.process(result, onPersisted);
+        }
+    }
+}
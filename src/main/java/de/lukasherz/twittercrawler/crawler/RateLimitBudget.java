@@ -0,0 +1,130 @@
+package de.lukasherz.twittercrawler.crawler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Rate limit window of one token for one endpoint, fed from the x-rate-limit-* headers of every response.
+ * Requests that are in flight are reserved against the remaining budget so concurrent workers stop before the
+ * limit is hit, and the remaining calls are spread evenly over what is left of the window.
+ */
+@Flogger
+public class RateLimitBudget {
+
+    public static final String HEADER_LIMIT = "x-rate-limit-limit";
+    public static final String HEADER_REMAINING = "x-rate-limit-remaining";
+    public static final String HEADER_RESET = "x-rate-limit-reset";
+    private static final Duration UNKNOWN_WINDOW_RETRY = Duration.ofSeconds(1);
+
+    private final boolean pacing;
+    private int limit = -1;
+    private int remaining = -1;
+    private Instant reset = Instant.EPOCH;
+    private Instant blockedUntil = Instant.EPOCH;
+    private Instant lastGranted = Instant.EPOCH;
+    private int reserved;
+
+    public RateLimitBudget(boolean pacing) {
+        this.pacing = pacing;
+    }
+
+    public static boolean hasRateLimitHeaders(Map<String, List<String>> headers) {
+        return headers != null && headers.containsKey(HEADER_REMAINING) && headers.containsKey(HEADER_RESET);
+    }
+
+    public static Instant getReset(Map<String, List<String>> headers) {
+        return Instant.ofEpochSecond(Long.parseLong(headers.get(HEADER_RESET).get(0)));
+    }
+
+    /**
+     * Returns the earliest time this token may send the next request.
+     */
+    public synchronized Instant nextAllowed(Instant now) {
+        if (blockedUntil.isAfter(now)) {
+            return blockedUntil;
+        }
+
+        if (limit < 0) {
+            // unknown window, a single call finds it out before more are sent
+            return reserved == 0 ? now : now.plus(UNKNOWN_WINDOW_RETRY);
+        }
+
+        if (!reset.isAfter(now)) {
+            // elapsed window, the next response tells us the new one, until then the last limit holds
+            return reserved < limit ? now : now.plus(UNKNOWN_WINDOW_RETRY);
+        }
+
+        int available = remaining - reserved;
+        if (available <= 0) {
+            return reset;
+        }
+
+        if (!pacing) {
+            return now;
+        }
+
+        long spacing = Duration.between(now, reset).toMillis() / (available + 1);
+        Instant paced = lastGranted.plusMillis(spacing);
+        return paced.isAfter(now) ? paced : now;
+    }
+
+    synchronized int getReserved() {
+        return reserved;
+    }
+
+    synchronized void reserve(Instant now) {
+        reserved++;
+        lastGranted = now;
+    }
+
+    /**
+     * Releases the reservation of a finished request and takes over the window reported by the response.
+     */
+    synchronized void update(Map<String, List<String>> headers) {
+        reserved = Math.max(0, reserved - 1);
+
+        if (!hasRateLimitHeaders(headers)) return;
+
+        try {
+            remaining = Integer.parseInt(headers.get(HEADER_REMAINING).get(0));
+            reset = getReset(headers);
+            if (headers.containsKey(HEADER_LIMIT)) {
+                limit = Integer.parseInt(headers.get(HEADER_LIMIT).get(0));
+            } else if (limit < 0) {
+                limit = remaining;
+            }
+        } catch (NumberFormatException e) {
+            log.atWarning().withCause(e).log("Could not parse rate limit headers: %s", headers);
+        }
+    }
+
+    synchronized void blockUntil(Instant time) {
+        blockedUntil = time;
+        if (time.isAfter(reset)) {
+            reset = time;
+            remaining = 0;
+        }
+    }
+
+    synchronized void unblock() {
+        blockedUntil = Instant.EPOCH;
+        limit = -1;
+        remaining = -1;
+        reserved = 0;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getRemaining() {
+        return remaining;
+    }
+
+    public synchronized Instant getReset() {
+        return reset;
+    }
+}
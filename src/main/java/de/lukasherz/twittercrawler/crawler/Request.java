@@ -1,5 +1,6 @@
 package de.lukasherz.twittercrawler.crawler;
 
+import com.twitter.clientlib.api.TwitterApi;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -10,26 +11,55 @@ import lombok.NoArgsConstructor;
 public abstract class Request<T> {
 
     private Priority priority = Priority.NORMAL;
+    // requests of the same job (e.g. one hashtag) share a fair part of the rate limit
+    private String jobId = "default";
+    // id in the frontier journal, 0 as long as the request was never queued
+    private long journalId;
+    // set when first queued, kept when queued again so the request keeps aging
+    private long queuedSince;
+    private long sequence;
+    // number of retries after transient failures
+    private int attempts;
 
-    protected abstract T executeImpl();
+    protected abstract T executeImpl(TwitterApi api);
 
-    public T execute() {
-        T result = executeImpl();
-        runAfterExecutionImpl(result);
-        return result;
+    /**
+     * Sends the request to the api with the token whose call was reserved for it by
+     * {@link RequestPriorityQueue#tryAcquireApi()}. The result is not persisted yet, follow-up pages are only queued
+     * once it is.
+     */
+    public T execute(TwitterApi api) {
+        return executeImpl(api);
+    }
+
+    /**
+     * Persists the result of {@link #execute(TwitterApi)}. This may run on another thread than the request itself.
+     */
+    public void process(T result) {
+        process(result, () -> { });
     }
 
-    protected T executeAndProcessImpl() {
-        return executeImpl();
+    /**
+     * Persists the result of {@link #execute(TwitterApi)}.
+     *
+     * @param onPersisted called once the result is stored, which may be later and on another thread
+     */
+    public void process(T result, Runnable onPersisted) {
+        processImpl(result, onPersisted);
     }
 
-    public T executeAndProcess() {
-        T result = executeAndProcessImpl();
-        runAfterExecutionImpl(result);
+    public T executeAndProcess(TwitterApi api) {
+        T result = execute(api);
+        process(result);
         return result;
     }
 
-    protected void runAfterExecutionImpl(T result) {
+    protected void processImpl(T result, Runnable onPersisted) {
+        processImpl(result);
+        onPersisted.run();
+    }
+
+    protected void processImpl(T result) {
 
     }
 
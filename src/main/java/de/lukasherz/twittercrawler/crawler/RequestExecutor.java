@@ -0,0 +1,190 @@
+package de.lukasherz.twittercrawler.crawler;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.twitter.clientlib.api.TwitterApi;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Drains a {@link RequestPriorityQueue} with a bounded pool of worker threads. A single dispatcher thread hands
+ * requests to the workers as long as it can reserve a call of a token and fewer than {@code maxInFlight} requests
+ * are running. Each request is sent with the token reserved for it, so the wall-clock time of a crawl follows the rate limit instead of
+ * the sum of all request latencies. Results are handed to a {@link PersistencePipeline}, so database writes do not
+ * hold back the next api call.
+ */
+@Flogger
+public class RequestExecutor<T> {
+
+    private static final Duration IDLE_DELAY = Duration.ofSeconds(5);
+
+    private final RequestPriorityQueue<T> queue;
+    private final PersistencePipeline pipeline;
+    private final String name;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private ScheduledExecutorService dispatcher;
+    private ExecutorService workers;
+    private ScheduledFuture<?> nextDispatch;
+    private Instant nextDispatchTime;
+    private volatile boolean running;
+
+    public RequestExecutor(RequestPriorityQueue<T> queue, PersistencePipeline pipeline, String name,
+                           int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+
+        this.queue = queue;
+        this.pipeline = pipeline;
+        this.name = name;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public synchronized void start() {
+        if (running) return;
+
+        dispatcher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat(name + "-dispatcher").build());
+        workers = Executors.newFixedThreadPool(maxInFlight,
+            new ThreadFactoryBuilder().setNameFormat(name + "-worker-%d").build());
+        running = true;
+
+        schedule(Instant.now().plus(1, ChronoUnit.SECONDS));
+    }
+
+    /**
+     * Stops dispatching new requests and waits for the running ones to finish. The executor can be started again
+     * afterwards.
+     */
+    public void stop() {
+        ScheduledExecutorService dispatcher;
+        ExecutorService workers;
+
+        synchronized (this) {
+            if (!running) return;
+
+            running = false;
+            dispatcher = this.dispatcher;
+            workers = this.workers;
+            this.dispatcher = null;
+            this.workers = null;
+            nextDispatch = null;
+            nextDispatchTime = null;
+        }
+
+        dispatcher.shutdownNow();
+        workers.shutdown();
+
+        try {
+            if (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.atWarning().log("%s: requests still running after shutdown timeout", name);
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Makes sure the dispatcher runs at the given time at the latest. An earlier pending run is kept.
+     */
+    public synchronized void schedule(Instant time) {
+        if (!running) return;
+
+        if (nextDispatch != null && !nextDispatch.isDone() && !nextDispatchTime.isAfter(time)) {
+            return;
+        }
+
+        if (nextDispatch != null) {
+            nextDispatch.cancel(false);
+        }
+
+        long delay = Math.max(0, Duration.between(Instant.now(), time).toMillis());
+        nextDispatchTime = time;
+        nextDispatch = dispatcher.schedule(this::dispatch, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch() {
+        synchronized (this) {
+            // this run is the pending one, the next call to schedule has to plan a new run
+            nextDispatch = null;
+            nextDispatchTime = null;
+        }
+
+        try {
+            while (running && !queue.isEmpty() && inFlight.tryAcquire()) {
+                Optional<TwitterApi> api = queue.tryAcquireApi();
+                if (api.isEmpty()) {
+                    inFlight.release();
+                    break;
+                }
+
+                Request<T> request = queue.poll();
+                if (request == null) {
+                    queue.updateRateLimit(api.get(), null);
+                    inFlight.release();
+                    break;
+                }
+
+                queue.getCircuitBreaker().onDispatch();
+                submit(request, api.get());
+            }
+        } catch (RuntimeException e) {
+            log.atSevere().withCause(e).log("%s: dispatching failed", name);
+        }
+
+        if (!running) return;
+
+        if (queue.isEmpty()) {
+            schedule(Instant.now().plus(IDLE_DELAY));
+        } else if (!queue.canRequest()) {
+            schedule(queue.getNextApiEntry().getValue());
+        }
+        // otherwise all workers are busy and the next finished request triggers the dispatcher again
+    }
+
+    private void submit(Request<T> request, TwitterApi api) {
+        try {
+            workers.execute(() -> {
+                try {
+                    T result = request.execute(api);
+                    if (result != null) {
+                        pipeline.submit(request, result, () -> queue.complete(request));
+                    }
+                } catch (InterruptedException e) {
+                    log.atWarning().log("%s: interrupted while handing over result of %s", name, request);
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    log.atSevere().withCause(e).log("%s: request %s failed", name, request);
+                } finally {
+                    inFlight.release();
+                    schedule(Instant.now());
+                }
+            });
+        } catch (RuntimeException e) {
+            // executor was shut down in between, keep the request for the next start
+            queue.updateRateLimit(api, null);
+            inFlight.release();
+            queue.offer(request);
+        }
+    }
+}
@@ -1,77 +1,302 @@
 package de.lukasherz.twittercrawler.crawler;
 
 import com.twitter.clientlib.api.TwitterApi;
+import de.lukasherz.twittercrawler.CrawlerConfig;
 import org.jetbrains.annotations.NotNull;
 
+import java.time.Duration;
 import java.time.Instant;
-import java.util.*;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Queue of the requests for one endpoint together with the rate limit budgets of the tokens serving it.
+ * <p>
+ * Requests are grouped into jobs (one per hashtag) that share the endpoint by start-time fair queuing, weighted
+ * with crawler.scheduler.weight.&lt;job&gt;, so a large job cannot starve the others. Within a job, requests are
+ * ordered by priority and then FIFO. Waiting requests age by one priority level every
+ * crawler.scheduler.aging-minutes, so low priority requests are not postponed forever.
+ */
 public class RequestPriorityQueue<T> {
-    private final PriorityBlockingQueue<Request<T>> queue;
-    private final SortedSet<Map.Entry<TwitterApi, Instant>> nextApi;
+    private static final Comparator<QueuedRequest<?>> REQUEST_ORDER =
+        Comparator.<QueuedRequest<?>>comparingLong(QueuedRequest::score).reversed()
+            .thenComparingLong(QueuedRequest::sequence);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<String, Job<T>> jobs = new LinkedHashMap<>();
+    private final long agingMillis;
+    private long sequence;
+    private double virtualTime;
+    private int size;
+    // rate limit budget per token for the endpoint this queue is serving
+    private final Map<TwitterApi, RateLimitBudget> nextApi;
+    private final boolean pacing;
+    private final FrontierJournal journal;
+    private final CircuitBreaker circuitBreaker;
 
     public RequestPriorityQueue(Set<TwitterApi> apis) {
-        this(apis, 100);
+        this(apis, null, CircuitBreaker.fromConfig("default"));
     }
 
-    public RequestPriorityQueue(Set<TwitterApi> apis, int initialCapacity) {
-        this.queue = new PriorityBlockingQueue<>(initialCapacity, Comparator.comparing(Request::getPriority));
+    public RequestPriorityQueue(Set<TwitterApi> apis, FrontierJournal journal, CircuitBreaker circuitBreaker) {
+        this.journal = journal;
+        this.circuitBreaker = circuitBreaker;
+        this.agingMillis = Math.max(1,
+            Duration.ofMinutes(CrawlerConfig.getLong("crawler.scheduler.aging-minutes", 10)).toMillis());
 
-        this.nextApi = Collections.synchronizedSortedSet(new TreeSet<>(Map.Entry.comparingByValue()));
-        this.nextApi.addAll(apis.stream().map(api -> Map.entry(api, Instant.now())).toList());
+        this.pacing = CrawlerConfig.getBoolean("crawler.ratelimit.pacing", true);
+        this.nextApi = new LinkedHashMap<>();
+        apis.forEach(api -> nextApi.put(api, new RateLimitBudget(pacing)));
     }
 
+    /**
+     * Queues a request. A request that is queued again (e.g. after a rate limit) keeps its original position
+     * instead of starting to wait from the beginning.
+     */
     public void offer(Request<T> request) {
-        queue.offer(request);
+        if (journal != null) {
+            journal.recordOffer(request);
+        }
+
+        lock.lock();
+        try {
+            if (request.getQueuedSince() == 0) {
+                request.setQueuedSince(System.currentTimeMillis());
+                request.setSequence(++sequence);
+            }
+
+            Job<T> job = jobs.get(request.getJobId());
+            if (job == null) {
+                job = new Job<>(CrawlerConfig.getDouble("crawler.scheduler.weight." + request.getJobId(), 1.));
+                jobs.put(request.getJobId(), job);
+            }
+            if (job.requests.isEmpty()) {
+                // a job that was idle does not get credit for the time it did not use
+                job.virtualStart = Math.max(job.virtualStart, virtualTime);
+            }
+
+            long score = request.getPriority().getValue() * agingMillis - request.getQueuedSince();
+            job.requests.add(new QueuedRequest<>(request, score, request.getSequence()));
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a request as done once its result is persisted or it was given up, so it is not replayed after a
+     * restart.
+     */
+    public void complete(Request<T> request) {
+        if (journal != null) {
+            journal.recordDone(request);
+        }
     }
 
     public Request<T> poll() {
-        return queue.poll();
+        lock.lock();
+        try {
+            Job<T> job = nextJob();
+            if (job == null) return null;
+
+            QueuedRequest<T> next = job.requests.poll();
+            size--;
+            virtualTime = job.virtualStart;
+            job.virtualStart += 1. / job.weight;
+
+            if (job.requests.isEmpty()) {
+                jobs.remove(next.request().getJobId());
+            }
+
+            return next.request();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public Request<T> peek() {
-        return queue.peek();
+        lock.lock();
+        try {
+            Job<T> job = nextJob();
+            return job == null ? null : job.requests.peek().request();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int size() {
-        return queue.size();
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isEmpty() {
-        return queue.isEmpty();
+        return size() == 0;
     }
 
     public Request<T> takeOrWait() throws InterruptedException {
-        return queue.take();
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return poll();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void clear() {
-        queue.clear();
+        lock.lock();
+        try {
+            jobs.clear();
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public @NotNull Map.Entry<TwitterApi, Instant> getNextApiEntry() {
-        return nextApi.first();
+    /**
+     * Returns the number of queued requests per job.
+     */
+    public Map<String, Integer> getJobSizes() {
+        lock.lock();
+        try {
+            Map<String, Integer> sizes = new LinkedHashMap<>();
+            jobs.forEach((id, job) -> sizes.put(id, job.requests.size()));
+            return sizes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Job<T> nextJob() {
+        Job<T> next = null;
+        for (Job<T> job : jobs.values()) {
+            if (!job.requests.isEmpty() && (next == null || job.virtualStart < next.virtualStart)) {
+                next = job;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Returns the token that is allowed to send the next request the earliest, together with that time. Of the
+     * tokens that may send now, the one with the fewest calls in flight is taken, so concurrent requests spread over
+     * all tokens. While the circuit breaker of the endpoint is open, the time is postponed until it lets requests
+     * through again.
+     */
+    public synchronized @NotNull Map.Entry<TwitterApi, Instant> getNextApiEntry() {
+        Instant now = Instant.now();
+        TwitterApi next = null;
+        Instant nextTime = null;
+        int nextReserved = 0;
+        for (Map.Entry<TwitterApi, RateLimitBudget> entry : nextApi.entrySet()) {
+            Instant time = entry.getValue().nextAllowed(now);
+            if (time.isBefore(now)) {
+                time = now;
+            }
+            int reserved = entry.getValue().getReserved();
+
+            if (nextTime == null || time.isBefore(nextTime)
+                || (time.equals(nextTime) && !time.isAfter(now) && reserved < nextReserved)) {
+                next = entry.getKey();
+                nextTime = time;
+                nextReserved = reserved;
+            }
+        }
+
+        if (next == null) {
+            throw new NoSuchElementException("No api registered for this queue");
+        }
+
+        Instant permitted = circuitBreaker.permittedAt(now);
+        return Map.entry(next, permitted.isAfter(nextTime) ? permitted : nextTime);
     }
 
     public @NotNull TwitterApi getNextApi() {
-        return nextApi.first().getKey();
+        return getNextApiEntry().getKey();
     }
 
-    public void setTimeForApi(@NotNull TwitterApi api, @NotNull Instant time) {
-        nextApi.removeIf(e -> e.getKey().equals(api));
-        nextApi.add(Map.entry(api, time));
+    /**
+     * Reserves one call of the token with the earliest budget if that token may send a request now, and returns
+     * nothing otherwise. Checking and reserving is one step, so concurrent callers never reserve more calls than the
+     * budgets have. The call stays reserved until {@link #updateRateLimit(TwitterApi, Map)} is called with the
+     * response.
+     */
+    public synchronized Optional<TwitterApi> tryAcquireApi() {
+        if (nextApi.isEmpty()) return Optional.empty();
+
+        Instant now = Instant.now();
+        Map.Entry<TwitterApi, Instant> next = getNextApiEntry();
+        if (next.getValue().isAfter(now)) return Optional.empty();
+
+        nextApi.get(next.getKey()).reserve(now);
+        return Optional.of(next.getKey());
+    }
+
+    /**
+     * Releases the reservation made by {@link #tryAcquireApi()} and updates the budget of the token from the
+     * x-rate-limit-* headers of the response, if there are any.
+     */
+    public void updateRateLimit(@NotNull TwitterApi api, Map<String, List<String>> headers) {
+        RateLimitBudget budget = getBudget(api);
+        if (budget != null) {
+            budget.update(headers);
+        }
+    }
+
+    public synchronized RateLimitBudget getBudget(@NotNull TwitterApi api) {
+        return nextApi.get(api);
+    }
+
+    public synchronized void setTimeForApi(@NotNull TwitterApi api, @NotNull Instant time) {
+        nextApi.computeIfAbsent(api, a -> new RateLimitBudget(pacing)).blockUntil(time);
     }
 
     public void setTimeForCurrentEntry(@NotNull Instant time) {
         setTimeForApi(getNextApi(), time);
     }
 
-    public void resetTimeForApis() {
-        nextApi.forEach(e -> e.setValue(Instant.now()));
+    public synchronized void resetTimeForApis() {
+        nextApi.values().forEach(RateLimitBudget::unblock);
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public synchronized int getApiCount() {
+        return nextApi.size();
+    }
+
+    public synchronized boolean canRequest() {
+        return !nextApi.isEmpty() && !getNextApiEntry().getValue().isAfter(Instant.now());
+    }
+
+    private record QueuedRequest<T>(Request<T> request, long score, long sequence) {
     }
 
-    public boolean canRequest() {
-        return !nextApi.isEmpty() && nextApi.first().getValue().isBefore(Instant.now());
+    private static final class Job<T> {
+        private final double weight;
+        private final PriorityQueue<QueuedRequest<T>> requests = new PriorityQueue<>(REQUEST_ORDER);
+        private double virtualStart;
+
+        private Job(double weight) {
+            this.weight = weight > 0 ? weight : 1.;
+        }
     }
 }
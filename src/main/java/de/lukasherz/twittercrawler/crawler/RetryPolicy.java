@@ -0,0 +1,62 @@
+package de.lukasherz.twittercrawler.crawler;
+
+import com.twitter.clientlib.ApiException;
+import de.lukasherz.twittercrawler.CrawlerConfig;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed api call is retried and how long to wait before. Only transient failures (no response,
+ * timeouts, 5xx and 429 without rate limit headers) are retried, with exponential backoff and jitter so the
+ * retries of many requests do not hit the api at the same time.
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final Duration baseDelay;
+    private final Duration maxDelay;
+
+    public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    public static RetryPolicy fromConfig() {
+        return new RetryPolicy(
+            CrawlerConfig.getInt("crawler.retry.max-attempts", 5),
+            Duration.ofMillis(CrawlerConfig.getLong("crawler.retry.base-delay-ms", 1000)),
+            Duration.ofMillis(CrawlerConfig.getLong("crawler.retry.max-delay-ms", 300000)));
+    }
+
+    /**
+     * Returns whether the failure is transient. Other client errors (e.g. 400, 401, 404) fail the same way again.
+     */
+    public boolean isTransient(ApiException e) {
+        int code = e.getCode();
+        // code 0 means there was no response at all, e.g. a timeout or a dropped connection
+        return code == 0 || code == 429 || code >= 500;
+    }
+
+    /**
+     * Returns whether a request that failed with the given exception after {@code attempts} retries is tried again.
+     */
+    public boolean shouldRetry(ApiException e, int attempts) {
+        return isTransient(e) && attempts < maxAttempts;
+    }
+
+    /**
+     * Returns the delay before the given retry (starting at 0): half of the exponential delay plus a random part
+     * of the other half.
+     */
+    public Duration getDelay(int attempt) {
+        long exponential = baseDelay.toMillis() << Math.min(attempt, 20);
+        long capped = Math.min(maxDelay.toMillis(), exponential);
+        long half = capped / 2;
+        return Duration.ofMillis(half + ThreadLocalRandom.current().nextLong(half + 1));
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
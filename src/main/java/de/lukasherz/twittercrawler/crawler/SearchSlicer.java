@@ -0,0 +1,225 @@
+package de.lukasherz.twittercrawler.crawler;
+
+import com.twitter.clientlib.model.SearchCount;
+import com.twitter.clientlib.model.Tweet;
+import com.twitter.clientlib.model.TweetCountsResponse;
+import de.lukasherz.twittercrawler.CrawlerConfig;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Splits the search of a hashtag into time slices that are crawled as independent pagination chains, so a large
+ * hashtag is crawled by all tokens at once instead of one page after the other. The slices are cut from the hourly
+ * tweet counts of the query, newest first, so that each holds about the same number of tweets and together they
+ * hold the requested number.
+ * <p>
+ * The progress of every slice is tracked, and tweets a slice received already or that lie outside of it are dropped,
+ * so adjacent slices never store the same tweet twice. The progress of a hashtag is dropped once all of its slices
+ * are finished, and only if every slice was crawled to its end the high-water mark of the hashtag may move to the
+ * newest tweet of the slices.
+ */
+public class SearchSlicer {
+
+    private final boolean enabled;
+    private final int maxSlices;
+    private final int minTweetsPerSlice;
+    private final Map<String, SliceProgress> progress = new ConcurrentHashMap<>();
+
+    public SearchSlicer(boolean enabled, int maxSlices, int minTweetsPerSlice) {
+        this.enabled = enabled;
+        this.maxSlices = maxSlices;
+        this.minTweetsPerSlice = minTweetsPerSlice;
+    }
+
+    public static SearchSlicer fromConfig() {
+        return new SearchSlicer(
+            CrawlerConfig.getBoolean("crawler.search.slicing.enabled", false),
+            CrawlerConfig.getInt("crawler.search.slicing.max-slices", 16),
+            CrawlerConfig.getInt("crawler.search.slicing.min-tweets", 1000));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Cuts the hourly tweet counts of the query between the times into slices. Returns no slices if the query has no
+     * tweets.
+     */
+    public List<Slice> plan(TweetCountsResponse counts, Instant start, Instant end, int count) {
+        if (counts.getData() == null) return Collections.emptyList();
+
+        List<Bucket> buckets = counts.getData().stream()
+            .map(SearchSlicer::toBucket)
+            .sorted((a, b) -> b.start().compareTo(a.start()))
+            .toList();
+        return plan(buckets, start, end, count);
+    }
+
+    /**
+     * Cuts the buckets, newest first, into slices of at least {@code minTweetsPerSlice} tweets and at most
+     * {@code maxSlices} slices, up to {@code count} tweets.
+     */
+    List<Slice> plan(List<Bucket> newestFirst, Instant start, Instant end, int count) {
+        long total = 0;
+        for (Bucket bucket : newestFirst) {
+            total += bucket.tweets();
+            if (total >= count) break;
+        }
+        long perSlice = Math.max(minTweetsPerSlice, (Math.min(total, count) + maxSlices - 1) / maxSlices);
+
+        List<Slice> slices = new ArrayList<>();
+        int left = count;
+        Instant sliceEnd = end;
+        long tweets = 0;
+        for (Bucket bucket : newestFirst) {
+            if (left == 0) break;
+
+            tweets += bucket.tweets();
+            if (tweets >= perSlice || tweets >= left) {
+                int expected = (int) Math.min(tweets, left);
+                Instant sliceStart = bucket.start().isBefore(start) ? start : bucket.start();
+                slices.add(new Slice(sliceStart, sliceEnd, expected));
+                left -= expected;
+                sliceEnd = sliceStart;
+                tweets = 0;
+            }
+        }
+        if (tweets > 0 && left > 0) {
+            slices.add(new Slice(start, sliceEnd, (int) Math.min(tweets, left)));
+        }
+
+        return slices;
+    }
+
+    /**
+     * Starts tracking the slice of the hashtag.
+     *
+     * @param resumed whether the slice was resumed after a restart, the other slices of the hashtag and whether they
+     *                were crawled to their end are unknown then
+     */
+    public void register(String hashtag, Slice slice, boolean resumed) {
+        progress.computeIfAbsent(key(hashtag, slice.start(), slice.end()),
+            key -> new SliceProgress(hashtag, slice.expectedTweets(), resumed));
+    }
+
+    /**
+     * Drops the tweets the slice received already or that were created outside of it.
+     */
+    public List<Tweet> accept(String hashtag, Instant start, Instant end, List<Tweet> tweets) {
+        SliceProgress slice = progress.computeIfAbsent(key(hashtag, start, end),
+            key -> new SliceProgress(hashtag, 0, true));
+        List<Tweet> accepted = new ArrayList<>(tweets.size());
+
+        synchronized (slice) {
+            for (Tweet tweet : tweets) {
+                Instant createdAt = tweet.getCreatedAt() != null ? tweet.getCreatedAt().toInstant() : null;
+                if (createdAt != null && (createdAt.isBefore(start) || !createdAt.isBefore(end))) continue;
+
+                if (slice.seen.add(Long.parseLong(tweet.getId()))) {
+                    accepted.add(tweet);
+                }
+            }
+        }
+
+        return accepted;
+    }
+
+    /**
+     * Marks the slice as done, after its last page was processed or it was given up. If it was the last unfinished
+     * slice of the hashtag, the progress of the hashtag is dropped and the newest tweet id of all slices is returned,
+     * unless one of them did not reach its end.
+     *
+     * @param complete whether the slice was crawled to its end
+     * @param newestId the newest tweet id the slice received, may be null
+     */
+    public OptionalLong finish(String hashtag, Instant start, Instant end, boolean complete, Long newestId) {
+        synchronized (progress) {
+            SliceProgress slice = progress.get(key(hashtag, start, end));
+            if (slice == null) return OptionalLong.empty();
+
+            slice.finished = true;
+            slice.complete = complete;
+            slice.newestId = newestId != null ? newestId : 0;
+
+            List<SliceProgress> slices = progress.values().stream()
+                .filter(other -> other.hashtag.equals(hashtag))
+                .toList();
+            if (slices.stream().anyMatch(other -> !other.finished)) return OptionalLong.empty();
+
+            progress.values().removeIf(other -> other.hashtag.equals(hashtag));
+            if (slices.stream().anyMatch(other -> !other.complete || other.resumed)) return OptionalLong.empty();
+
+            long newest = slices.stream().mapToLong(other -> other.newestId).max().orElse(0);
+            return newest > 0 ? OptionalLong.of(newest) : OptionalLong.empty();
+        }
+    }
+
+    /**
+     * Returns the progress of the sliced searches per hashtag, e.g. "#foo: 3/8 slices, 1200/8000 tweets".
+     */
+    public String getProgress() {
+        return progress.values().stream()
+            .collect(Collectors.groupingBy(slice -> slice.hashtag))
+            .entrySet().stream()
+            .map(entry -> {
+                List<SliceProgress> slices = entry.getValue();
+                long finished = slices.stream().filter(slice -> slice.finished).count();
+                int tweets = slices.stream().mapToInt(SliceProgress::getTweets).sum();
+                return entry.getKey() + ": " + finished + "/" + slices.size() + " slices, " + tweets + "/"
+                    + slices.stream().mapToInt(slice -> slice.expectedTweets).sum() + " tweets";
+            })
+            .collect(Collectors.joining(", "));
+    }
+
+    private static String key(String hashtag, Instant start, Instant end) {
+        return hashtag + "|" + start + "|" + end;
+    }
+
+    private static Bucket toBucket(SearchCount count) {
+        return new Bucket(count.getStart().toInstant(), count.getTweetCount() != null ? count.getTweetCount() : 0);
+    }
+
+    /**
+     * The tweets of the query created in the hour starting at {@code start}.
+     */
+    record Bucket(Instant start, int tweets) {
+    }
+
+    /**
+     * A part of the search window, start inclusive and end exclusive, with the number of tweets to crawl in it.
+     */
+    public record Slice(Instant start, Instant end, int expectedTweets) {
+    }
+
+    private static final class SliceProgress {
+
+        private final String hashtag;
+        private final int expectedTweets;
+        private final boolean resumed;
+        private final LongSet seen = new LongOpenHashSet();
+        private volatile boolean finished;
+        private boolean complete;
+        private long newestId;
+
+        private SliceProgress(String hashtag, int expectedTweets, boolean resumed) {
+            this.hashtag = hashtag;
+            this.expectedTweets = expectedTweets;
+            this.resumed = resumed;
+        }
+
+        private int getTweets() {
+            synchronized (this) {
+                return seen.size();
+            }
+        }
+    }
+}
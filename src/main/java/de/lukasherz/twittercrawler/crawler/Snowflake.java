@@ -0,0 +1,27 @@
+package de.lukasherz.twittercrawler.crawler;
+
+import java.time.Instant;
+
+/**
+ * Conversions between tweet ids and their creation time. Tweet ids are snowflake ids that carry the milliseconds
+ * since the twitter epoch in their upper bits.
+ */
+public final class Snowflake {
+
+    private static final long TWITTER_EPOCH_MILLIS = 1288834974657L;
+    private static final int TIMESTAMP_SHIFT = 22;
+
+    private Snowflake() {
+    }
+
+    public static Instant toInstant(long id) {
+        return Instant.ofEpochMilli((id >> TIMESTAMP_SHIFT) + TWITTER_EPOCH_MILLIS);
+    }
+
+    /**
+     * Returns the smallest id a tweet created at the given time can have.
+     */
+    public static long fromInstant(Instant time) {
+        return (time.toEpochMilli() - TWITTER_EPOCH_MILLIS) << TIMESTAMP_SHIFT;
+    }
+}
@@ -2,15 +2,21 @@ package de.lukasherz.twittercrawler.crawler.requests;
 
 import com.google.common.flogger.LazyArgs;
 import com.twitter.clientlib.ApiException;
+import com.twitter.clientlib.ApiResponse;
+import com.twitter.clientlib.api.TwitterApi;
 import com.twitter.clientlib.model.User;
 import com.twitter.clientlib.model.UsersFollowingLookupResponse;
 import de.lukasherz.twittercrawler.crawler.CrawlerHandler;
+import de.lukasherz.twittercrawler.crawler.FollowsStopPolicy;
+import de.lukasherz.twittercrawler.crawler.FollowsStopPolicy.Score;
+import de.lukasherz.twittercrawler.crawler.RateLimitBudget;
 import de.lukasherz.twittercrawler.crawler.Request;
 import de.lukasherz.twittercrawler.crawler.RequestPriorityQueue;
 import de.lukasherz.twittercrawler.data.database.DatabaseManager;
+import de.lukasherz.twittercrawler.data.database.UnitOfWork;
 import de.lukasherz.twittercrawler.data.entities.users.UserDbEntry;
-import java.sql.SQLException;
-import java.time.Instant;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import lombok.extern.flogger.Flogger;
 
@@ -21,6 +27,10 @@ public class FollowsLookupRequest extends Request<UsersFollowingLookupResponse>
     private final long userId;
     private final int totalCountLeft;
     private final String token;
+    // the pages of this user crawled before this one
+    private final Score score;
+    // set by execute, queued once this page is done
+    private volatile FollowsLookupRequest nextPage;
 
     public FollowsLookupRequest(RequestPriorityQueue<UsersFollowingLookupResponse> queue, long userId,
                                 int totalCountLeft) {
@@ -28,6 +38,7 @@ public class FollowsLookupRequest extends Request<UsersFollowingLookupResponse>
         this.userId = userId;
         this.totalCountLeft = totalCountLeft;
         this.token = null;
+        this.score = Score.EMPTY;
     }
 
     public FollowsLookupRequest(RequestPriorityQueue<UsersFollowingLookupResponse> queue, long userId) {
@@ -35,76 +46,117 @@ public class FollowsLookupRequest extends Request<UsersFollowingLookupResponse>
         this.userId = userId;
         this.totalCountLeft = Integer.MAX_VALUE;
         this.token = null;
+        this.score = Score.EMPTY;
     }
 
     private FollowsLookupRequest(RequestPriorityQueue<UsersFollowingLookupResponse> queue, long userId,
                                  int totalCountLeft,
-                                 String token) {
+                                 String token,
+                                 Score score) {
         this.queue = queue;
         this.userId = userId;
         this.totalCountLeft = totalCountLeft;
         this.token = token;
+        this.score = score;
     }
 
-    @Override protected UsersFollowingLookupResponse executeImpl() {
+    /**
+     * Recreates a request that was still pending when the crawler stopped.
+     */
+    public static FollowsLookupRequest resume(RequestPriorityQueue<UsersFollowingLookupResponse> queue, long userId,
+                                              int totalCountLeft, String token, Score score) {
+        return new FollowsLookupRequest(queue, userId, totalCountLeft, token, score);
+    }
+
+    @Override protected UsersFollowingLookupResponse executeImpl(TwitterApi api) {
         log.atFine().log("Executing FollowsLookupRequest for user: %s with token: %s and count: %d and %d left",
             userId,
             token,
             LazyArgs.lazy(this::getCountForThisRun),
             LazyArgs.lazy(this::getCountForThisRun));
 
+        Map<String, List<String>> headers = null;
+
         try {
-            UsersFollowingLookupResponse uflr = queue.getNextApi().users().usersIdFollowing(
+            ApiResponse<UsersFollowingLookupResponse> response = api.users().usersIdFollowingWithHttpInfo(
                 String.valueOf(getUserId()),
                 getCountForThisRun(),
                 token
             );
+            headers = response.getHeaders();
+            queue.getCircuitBreaker().recordSuccess();
+            UsersFollowingLookupResponse uflr = response.getData();
+
+            FollowsStopPolicy stopPolicy = CrawlerHandler.getInstance().getFollowsStopPolicy();
+            Score nextScore = stopPolicy.score(score, uflr.getData() == null
+                ? List.of()
+                : uflr.getData().stream().map(User::getId).map(Long::parseLong).toList());
+
+            boolean morePages = getCountLeft() > 0
+                && uflr.getMeta() != null && uflr.getMeta().getResultCount() != null
+                && uflr.getMeta().getResultCount() == getCountForThisRun();
 
-            if (getCountLeft() > 0
-                && (uflr.getMeta() != null && uflr.getMeta().getResultCount() != null
-                && uflr.getMeta().getResultCount() == getCountForThisRun())) {
+            if (morePages && !stopPolicy.shouldStop(nextScore, morePages)) {
 
                 FollowsLookupRequest nextRequest = new FollowsLookupRequest(
                     queue,
                     getUserId(),
                     getCountLeft(),
-                    uflr.getMeta() != null ? uflr.getMeta().getNextToken() : null
+                    uflr.getMeta() != null ? uflr.getMeta().getNextToken() : null,
+                    nextScore
                 );
                 nextRequest.setPriority(Priority.HIGH);
-                queue.offer(nextRequest);
+                nextRequest.setJobId(getJobId());
+                nextPage = nextRequest;
             }
 
             return uflr;
         } catch (ApiException e) {
-            if (e.getResponseHeaders() != null && e.getResponseHeaders().containsKey("x-rate-limit-remaining")) {
-                CrawlerHandler.getInstance().handleRateLimit(
-                    this,
-                    Instant.ofEpochSecond(Long.parseLong(e.getResponseHeaders().get("x-rate-limit-reset").get(0)))
-                );
+            headers = e.getResponseHeaders();
+            if (e.getCode() == 429 && RateLimitBudget.hasRateLimitHeaders(headers)) {
+                CrawlerHandler.getInstance().handleRateLimit(this, api, RateLimitBudget.getReset(headers));
             } else {
-                log.atSevere().withCause(e).log("Could not get rate limit information from response headers.");
+                CrawlerHandler.getInstance().handleFailure(this, e);
             }
+        } finally {
+            queue.updateRateLimit(api, headers);
         }
 
         return null;
     }
 
-    @Override protected void runAfterExecutionImpl(UsersFollowingLookupResponse result) {
-        CrawlerHandler ch = CrawlerHandler.getInstance();
-        DatabaseManager dm = DatabaseManager.getInstance();
+    @Override protected void processImpl(UsersFollowingLookupResponse result, Runnable onPersisted) {
+        if (result == null || result.getData() == null) {
+            completeAndQueueNextPage(onPersisted);
+            return;
+        }
 
-        if (result != null && result.getData() != null) {
-            try {
-                dm.insertUsers(result.getData().stream().map(UserDbEntry::parse).toList());
-                dm.insertFollowings(
-                    getUserId(),
-                    result.getData().stream()
-                        .map(User::getId)
-                        .map(Long::parseLong)
-                        .collect(Collectors.toList()));
-            } catch (SQLException e) {
-                log.atSevere().log("Could not insert users or their followings into database.");
-            }
+        UnitOfWork uow = DatabaseManager.getInstance().newUnitOfWork()
+            .addUsers(result.getData().stream().map(UserDbEntry::parse).toList())
+            .addFollowings(
+                getUserId(),
+                result.getData().stream()
+                    .map(User::getId)
+                    .map(Long::parseLong)
+                    .collect(Collectors.toList()));
+
+        try {
+            DatabaseManager.getInstance().getWriteBehindBuffer()
+                .submit(uow, () -> completeAndQueueNextPage(onPersisted));
+        } catch (InterruptedException e) {
+            log.atWarning().log("Interrupted while persisting followings of %d", getUserId());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Marks this page as done and only then queues the next one, so a restart never replays both and crawls the rest
+     * of the followings twice.
+     */
+    private void completeAndQueueNextPage(Runnable onPersisted) {
+        onPersisted.run();
+        if (nextPage != null) {
+            queue.offer(nextPage);
         }
     }
 
@@ -112,6 +164,18 @@ public class FollowsLookupRequest extends Request<UsersFollowingLookupResponse>
         return userId;
     }
 
+    public int getTotalCountLeft() {
+        return totalCountLeft;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public Score getScore() {
+        return score;
+    }
+
     private int getCountForThisRun() {
         return Math.max(10, Math.min(totalCountLeft, 1000));
     }
@@ -1,6 +1,8 @@
 package de.lukasherz.twittercrawler.crawler.requests;
 
 import com.twitter.clientlib.ApiException;
+import com.twitter.clientlib.ApiResponse;
+import com.twitter.clientlib.api.TwitterApi;
 import com.twitter.clientlib.model.ContextAnnotation;
 import com.twitter.clientlib.model.ContextAnnotationDomainFields;
 import com.twitter.clientlib.model.ContextAnnotationEntityFields;
@@ -8,18 +10,23 @@ import com.twitter.clientlib.model.Tweet;
 import com.twitter.clientlib.model.TweetSearchResponse;
 import com.twitter.clientlib.model.User;
 import de.lukasherz.twittercrawler.crawler.CrawlerHandler;
+import de.lukasherz.twittercrawler.crawler.RateLimitBudget;
 import de.lukasherz.twittercrawler.crawler.Request;
 import de.lukasherz.twittercrawler.crawler.RequestPriorityQueue;
 import de.lukasherz.twittercrawler.data.database.DatabaseManager;
+import de.lukasherz.twittercrawler.data.database.UnitOfWork;
 import de.lukasherz.twittercrawler.data.entities.tweets.TweetDbEntry;
 import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.ContextAnnotationDbEntry;
 import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.ContextAnnotationDomainDbEntry;
 import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.ContextAnnotationEntityDbEntry;
 import de.lukasherz.twittercrawler.data.entities.users.UserDbEntry;
-import java.sql.SQLException;
 import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.OptionalLong;
 import java.util.Set;
 import java.util.stream.Collectors;
 import lombok.extern.flogger.Flogger;
@@ -32,6 +39,16 @@ public class HashtagSearchRequest extends Request<TweetSearchResponse> {
     private final String hashtag;
     private final int totalCountLeft;
     private final String token;
+    private final String sinceId;
+    private final Instant startTime;
+    private final Instant endTime;
+    private final String newestId;
+    // set by execute when no page follows this one, exhausted if the chain reached the end of the results
+    private volatile boolean lastPage;
+    private volatile boolean exhausted;
+    private volatile String chainNewestId;
+    // set by execute, queued once this page is done
+    private volatile HashtagSearchRequest nextPage;
 
     /**
      * Returns the next request to be crawled.
@@ -41,10 +58,34 @@ public class HashtagSearchRequest extends Request<TweetSearchResponse> {
      * @param count   the total number of tweets to be crawled
      */
     public HashtagSearchRequest(RequestPriorityQueue<TweetSearchResponse> queue, String hashtag, @Positive int count) {
-        this.queue = queue;
-        this.hashtag = hashtag;
-        this.totalCountLeft = count;
-        this.token = null;
+        this(queue, hashtag, count, null, null, null, null, null);
+    }
+
+    /**
+     * Returns the next request to be crawled, only asking for tweets newer than the given one.
+     *
+     * @param queue   the queue to add the results to
+     * @param hashtag including the "#" upfront
+     * @param count   the total number of tweets to be crawled
+     * @param sinceId only tweets with a larger id are crawled, null to crawl everything
+     */
+    public HashtagSearchRequest(RequestPriorityQueue<TweetSearchResponse> queue, String hashtag, @Positive int count,
+                                Long sinceId) {
+        this(queue, hashtag, count, null, sinceId != null ? String.valueOf(sinceId) : null, null, null, null);
+    }
+
+    /**
+     * Returns the first request of a time slice of the search, which is paged independently of the other slices.
+     *
+     * @param queue     the queue to add the results to
+     * @param hashtag   including the "#" upfront
+     * @param count     the total number of tweets to be crawled in the slice
+     * @param startTime the creation time of the oldest tweets of the slice, inclusive
+     * @param endTime   the creation time of the newest tweets of the slice, exclusive
+     */
+    public HashtagSearchRequest(RequestPriorityQueue<TweetSearchResponse> queue, String hashtag, @Positive int count,
+                                Instant startTime, Instant endTime) {
+        this(queue, hashtag, count, null, null, startTime, endTime, null);
     }
 
     /**
@@ -54,111 +95,177 @@ public class HashtagSearchRequest extends Request<TweetSearchResponse> {
      * @param hashtag        including the "#" upfront
      * @param totalCountLeft the total number of tweets to be crawled
      * @param token          the token to be used for the next request
+     * @param sinceId        the high-water mark the whole pagination chain is crawled against
+     * @param startTime      the start of the time slice of the pagination chain, null if it is not sliced
+     * @param endTime        the end of the time slice of the pagination chain, null if it is not sliced
+     * @param newestId       the newest tweet id of the pages of the pagination chain before, null for the first page
      */
     private HashtagSearchRequest(RequestPriorityQueue<TweetSearchResponse> queue,
                                  String hashtag,
                                  int totalCountLeft,
-                                 String token) {
+                                 String token,
+                                 String sinceId,
+                                 Instant startTime,
+                                 Instant endTime,
+                                 String newestId) {
         this.queue = queue;
         this.hashtag = hashtag;
         this.totalCountLeft = totalCountLeft;
         this.token = token;
+        this.sinceId = sinceId;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.newestId = newestId;
+        setJobId(hashtag);
+    }
+
+    /**
+     * Recreates a request that was still pending when the crawler stopped.
+     *
+     * @param queue          the queue to add the results to
+     * @param hashtag        including the "#" upfront
+     * @param totalCountLeft the total number of tweets to be crawled
+     * @param token          the pagination token of the page to be crawled, null for the first page
+     * @param sinceId        the high-water mark of the pagination chain, may be null
+     * @param startTime      the start of the time slice of the pagination chain, may be null
+     * @param endTime        the end of the time slice of the pagination chain, may be null
+     * @param newestId       the newest tweet id of the pages crawled before, may be null
+     */
+    public static HashtagSearchRequest resume(RequestPriorityQueue<TweetSearchResponse> queue,
+                                              String hashtag,
+                                              int totalCountLeft,
+                                              String token,
+                                              String sinceId,
+                                              Instant startTime,
+                                              Instant endTime,
+                                              String newestId) {
+        return new HashtagSearchRequest(queue, hashtag, totalCountLeft, token, sinceId, startTime, endTime,
+            newestId);
     }
 
-    private void processHashtagSearchRequestResult(TweetSearchResponse tsr) {
+    private void processHashtagSearchRequestResult(TweetSearchResponse tsr, Runnable onPersisted) {
         if (tsr == null) {
+            completeAndQueueNextPage(onPersisted);
             return;
         }
 
-        DatabaseManager dm = DatabaseManager.getInstance();
         CrawlerHandler ch = CrawlerHandler.getInstance();
+        UnitOfWork uow = DatabaseManager.getInstance().newUnitOfWork();
 
-        try {
-            if (tsr.getIncludes() != null && tsr.getIncludes().getUsers() != null) {
-                dm.insertUsers(tsr.getIncludes().getUsers().stream().map(UserDbEntry::parse).toList());
+        if (isSliced()) {
+            if (tsr.getData() != null) {
+                tsr.setData(ch.getSearchSlicer().accept(hashtag, startTime, endTime, tsr.getData()));
+            }
+        }
+
+        // the high-water mark only moves once the whole search reached its end, a chain that was cut short or a
+        // slice that was given up would otherwise leave older tweets behind that are never crawled
+        if (lastPage) {
+            Long highWaterMark = null;
+            if (isSliced()) {
+                OptionalLong newest = ch.getSearchSlicer().finish(hashtag, startTime, endTime, exhausted,
+                    chainNewestId != null ? Long.parseLong(chainNewestId) : null);
+                highWaterMark = newest.isPresent() ? newest.getAsLong() : null;
+            } else if (exhausted && chainNewestId != null) {
+                highWaterMark = Long.parseLong(chainNewestId);
+            }
+
+            if (highWaterMark != null) {
+                uow.updateSearchHighWaterMark(getQuery(), highWaterMark);
+            }
+        }
+
+        if (tsr.getIncludes() != null && tsr.getIncludes().getUsers() != null) {
+            uow.addUsers(tsr.getIncludes().getUsers().stream().map(UserDbEntry::parse).toList());
+        }
+
+        if (tsr.getData() != null) {
+            uow.addTweets(tsr.getData().stream().map(m -> TweetDbEntry.parse(m, getQuery())).toList());
+
+            uow.addContextAnnotationDomains(tsr.getData().stream()
+                .map(Tweet::getContextAnnotations)
+                .filter(Objects::nonNull)
+                .flatMap(Collection::stream)
+                .map(ContextAnnotation::getDomain)
+                .map(ContextAnnotationDomainDbEntry::parse)
+                .toList());
+
+            uow.addContextAnnotationEntities(tsr.getData().stream()
+                .map(Tweet::getContextAnnotations)
+                .filter(Objects::nonNull)
+                .flatMap(Collection::stream)
+                .map(ContextAnnotation::getEntity)
+                .map(ContextAnnotationEntityDbEntry::parse)
+                .toList());
+
+            uow.addContextAnnotations(tsr.getData().stream()
+                .map(Tweet::getContextAnnotations)
+                .filter(Objects::nonNull)
+                .flatMap(Collection::stream)
+                .map(ContextAnnotationDbEntry::parse)
+                .toList());
+
+            for (Tweet tweet : tsr.getData()) {
+                if (tweet.getContextAnnotations() == null) {
+                    continue;
+                }
+
+                uow.addTweetContextAnnotations(
+                    Long.parseLong(tweet.getId()),
+                    tweet.getContextAnnotations().stream()
+                        .map(ContextAnnotation::getDomain)
+                        .map(ContextAnnotationDomainFields::getId)
+                        .map(Long::parseLong)
+                        .collect(Collectors.toList()),
+                    tweet.getContextAnnotations().stream()
+                        .map(ContextAnnotation::getEntity)
+                        .map(ContextAnnotationEntityFields::getId)
+                        .map(Long::parseLong)
+                        .collect(Collectors.toList())
+                );
+            }
 
-                if (tsr.getData() != null) {
+            // no references because they are excluded in query
+//            dm.insertTweetReferences(tsr.getData().stream()
+//                .filter(t -> t.getReferencedTweets() != null)
+//                .flatMap(t -> TweetReferenceDbEntry.parse(t).stream())
+//                .collect(Collectors.toList())
+//            );
+        }
+
+        try {
+            DatabaseManager.getInstance().getWriteBehindBuffer().submit(uow, () -> {
+                // the authors are only queued once they are stored, the follows lookup references them
+                if (tsr.getIncludes() != null && tsr.getIncludes().getUsers() != null && tsr.getData() != null) {
                     tsr.getIncludes().getUsers().stream()
                         .map(User::getId)
                         .filter(id -> tsr.getData().stream()
                             .filter(t -> t.getAuthorId() != null)
                             .anyMatch(t -> t.getAuthorId().equalsIgnoreCase(id)))
                         .map(Long::parseLong)
-                        .forEach(ch::addFollowsLookupToQuery);
-                }
-            }
-
-            if (tsr.getData() != null) {
-                dm.insertTweets(tsr.getData().stream().map(m -> TweetDbEntry.parse(m, getQuery())).toList());
-
-                dm.insertContextAnnotationDomains(tsr.getData().stream()
-                    .map(Tweet::getContextAnnotations)
-                    .filter(Objects::nonNull)
-                    .flatMap(Collection::stream)
-                    .map(ContextAnnotation::getDomain)
-                    .map(ContextAnnotationDomainDbEntry::parse)
-                    .toList());
-
-                dm.insertContextAnnotationEntities(tsr.getData().stream()
-                    .map(Tweet::getContextAnnotations)
-                    .filter(Objects::nonNull)
-                    .flatMap(Collection::stream)
-                    .map(ContextAnnotation::getEntity)
-                    .map(ContextAnnotationEntityDbEntry::parse)
-                    .toList());
-
-                dm.insertContextAnnotations(tsr.getData().stream()
-                    .map(Tweet::getContextAnnotations)
-                    .filter(Objects::nonNull)
-                    .flatMap(Collection::stream)
-                    .map(ContextAnnotationDbEntry::parse)
-                    .toList());
-
-                for (Tweet tweet : tsr.getData()) {
-                    if (tweet.getContextAnnotations() == null) {
-                        break;
-                    }
-
-                    dm.insertTweetContextAnnotations(
-                        Long.parseLong(tweet.getId()),
-                        tweet.getContextAnnotations().stream()
-                            .map(ContextAnnotation::getDomain)
-                            .map(ContextAnnotationDomainFields::getId)
-                            .map(Long::parseLong)
-                            .collect(Collectors.toList()),
-                        tweet.getContextAnnotations().stream()
-                            .map(ContextAnnotation::getEntity)
-                            .map(ContextAnnotationEntityFields::getId)
-                            .map(Long::parseLong)
-                            .collect(Collectors.toList())
-                    );
+                        .forEach(id -> ch.addFollowsLookupToQuery(id, getJobId()));
                 }
-
-                // no references because they are excluded in query
-//                dm.insertTweetReferences(tsr.getData().stream()
-//                    .filter(t -> t.getReferencedTweets() != null)
-//                    .flatMap(t -> TweetReferenceDbEntry.parse(t).stream())
-//                    .collect(Collectors.toList())
-//                );
-
-            }
-        } catch (SQLException e) {
-            log.atSevere().withCause(e).log("Failed to insert HashtagTweetsResponse to database");
+                completeAndQueueNextPage(onPersisted);
+            });
+        } catch (InterruptedException e) {
+            log.atWarning().log("Interrupted while persisting search result of \"%s\"", getQuery());
+            Thread.currentThread().interrupt();
         }
     }
 
     @Override
-    protected TweetSearchResponse executeImpl() {
+    protected TweetSearchResponse executeImpl(TwitterApi api) {
         log.atInfo().log("Executing search for query: \"%s\" with %d tweets and %d tweets left",
             getQuery(), getCountForThisRun(), getCountLeft());
 
+        Map<String, List<String>> headers = null;
+
         try {
-            TweetSearchResponse tsr = queue.getNextApi().tweets().tweetsRecentSearch(
+            ApiResponse<TweetSearchResponse> response = api.tweets().tweetsRecentSearchWithHttpInfo(
                 getQuery(),
-                null,
-                //OffsetDateTime.now().minus(1, ChronoUnit.DAYS),
-                null,
-                null,
+                startTime != null ? startTime.atOffset(ZoneOffset.UTC) : null,
+                endTime != null ? endTime.atOffset(ZoneOffset.UTC) : null,
+                sinceId,
                 null,
                 getCountForThisRun(),
                 null,
@@ -211,38 +318,107 @@ public class HashtagSearchRequest extends Request<TweetSearchResponse> {
                 ),
                 null
             );
+            headers = response.getHeaders();
+            queue.getCircuitBreaker().recordSuccess();
+            TweetSearchResponse tsr = response.getData();
+            chainNewestId = newestId(tsr);
 
-            if (getCountLeft() > 0
-                && (tsr.getMeta() != null && tsr.getMeta().getResultCount() != null
-                && tsr.getMeta().getResultCount() == getCountForThisRun())) {
-                queue.offer(new HashtagSearchRequest(queue,
+            boolean morePages = tsr.getMeta() != null && tsr.getMeta().getNextToken() != null
+                && tsr.getMeta().getResultCount() != null && tsr.getMeta().getResultCount() == getCountForThisRun();
+            if (morePages && getCountLeft() > 0) {
+                nextPage = new HashtagSearchRequest(queue,
                     hashtag,
                     getCountLeft(),
-                    tsr.getMeta() != null ? tsr.getMeta().getNextToken() : null));
+                    tsr.getMeta().getNextToken(),
+                    sinceId,
+                    startTime,
+                    endTime,
+                    chainNewestId);
+            } else {
+                exhausted = !morePages;
+                lastPage = true;
             }
 
             return tsr;
         } catch (ApiException e) {
-            if (e.getResponseHeaders() != null && e.getResponseHeaders().containsKey("x-rate-limit-remaining")) {
-                CrawlerHandler.getInstance().handleRateLimit(
-                    this,
-                    Instant.ofEpochSecond(Long.parseLong(e.getResponseHeaders().get("x-rate-limit-reset").get(0)))
-                );
+            headers = e.getResponseHeaders();
+            if (e.getCode() == 429 && RateLimitBudget.hasRateLimitHeaders(headers)) {
+                CrawlerHandler.getInstance().handleRateLimit(this, api, RateLimitBudget.getReset(headers));
             } else {
-                log.atSevere().withCause(e).log("Could not get rate limit information from response headers.");
+                CrawlerHandler.getInstance().handleFailure(this, e);
             }
+        } finally {
+            queue.updateRateLimit(api, headers);
         }
 
         return null;
     }
 
-    @Override protected TweetSearchResponse executeAndProcessImpl() {
-        TweetSearchResponse tsr = executeImpl();
-        processHashtagSearchRequestResult(tsr);
-        return tsr;
+    @Override protected void processImpl(TweetSearchResponse tsr, Runnable onPersisted) {
+        processHashtagSearchRequestResult(tsr, onPersisted);
+    }
+
+    /**
+     * Marks this page as done and only then queues the next one, so a restart never replays both and crawls the rest
+     * of the chain twice.
+     */
+    private void completeAndQueueNextPage(Runnable onPersisted) {
+        onPersisted.run();
+        if (nextPage != null) {
+            queue.offer(nextPage);
+        }
+    }
+
+    /**
+     * Returns the newest tweet id of this page and the pages of the chain before.
+     */
+    private String newestId(TweetSearchResponse tsr) {
+        long newest = newestId != null ? Long.parseLong(newestId) : 0;
+        if (tsr.getData() != null) {
+            for (Tweet tweet : tsr.getData()) {
+                newest = Math.max(newest, Long.parseLong(tweet.getId()));
+            }
+        }
+        return newest > 0 ? String.valueOf(newest) : null;
+    }
+
+    public String getHashtag() {
+        return hashtag;
+    }
+
+    public int getTotalCountLeft() {
+        return totalCountLeft;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getSinceId() {
+        return sinceId;
+    }
+
+    public Instant getStartTime() {
+        return startTime;
+    }
+
+    public Instant getEndTime() {
+        return endTime;
+    }
+
+    public String getNewestId() {
+        return newestId;
+    }
+
+    public boolean isSliced() {
+        return startTime != null && endTime != null;
     }
 
     public String getQuery() {
+        return buildQuery(hashtag);
+    }
+
+    public static String buildQuery(String hashtag) {
         return hashtag + " -is:retweet -is:reply -is:quote lang:en";
     }
 
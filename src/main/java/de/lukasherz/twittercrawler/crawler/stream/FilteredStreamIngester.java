@@ -0,0 +1,409 @@
+package de.lukasherz.twittercrawler.crawler.stream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.twitter.clientlib.model.Expansions;
+import com.twitter.clientlib.model.Tweet;
+import com.twitter.clientlib.model.TweetSearchResponse;
+import com.twitter.clientlib.model.User;
+import de.lukasherz.twittercrawler.crawler.PersistencePipeline;
+import de.lukasherz.twittercrawler.crawler.RequestPriorityQueue;
+import de.lukasherz.twittercrawler.crawler.requests.HashtagSearchRequest;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Consumes the filtered stream endpoint for a set of hashtags. The hashtag queries are registered as stream rules
+ * tagged with the hashtag, matching tweets are collected into small batches per hashtag and handed to the
+ * {@link PersistencePipeline} like a page of the recent search. A full pipeline blocks the reading thread, which
+ * lets the connection apply backpressure. Lost connections are re-established with exponential backoff and, if
+ * enabled, the missed minutes are requested as backfill.
+ * <p>
+ * All requests go to a configurable base url, so the ingester can be run against a local server that emits
+ * newline-delimited JSON.
+ */
+@Flogger
+public class FilteredStreamIngester {
+
+    private static final Duration MIN_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration MIN_RATE_LIMIT_BACKOFF = Duration.ofMinutes(1);
+    private static final Duration MAX_BACKOFF = Duration.ofMinutes(5);
+    private static final int MAX_BACKFILL_MINUTES = 5;
+    private static final String RULE_TAG_PREFIX = "twittercrawler:";
+
+    private final HttpClient httpClient;
+    private final String baseUrl;
+    private final String bearerToken;
+    private final List<String> hashtags;
+    private final RequestPriorityQueue<TweetSearchResponse> searchQueue;
+    private final PersistencePipeline pipeline;
+    private final int batchSize;
+    private final Duration batchTimeout;
+    private final boolean backfill;
+    private final Map<String, Batch> batches = new HashMap<>();
+    private volatile boolean running;
+    private volatile InputStream currentStream;
+    private Thread thread;
+    private Instant lastDataReceived;
+
+    public FilteredStreamIngester(String baseUrl, String bearerToken, List<String> hashtags,
+                                  RequestPriorityQueue<TweetSearchResponse> searchQueue,
+                                  PersistencePipeline pipeline, int batchSize, Duration batchTimeout,
+                                  boolean backfill) {
+        this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.bearerToken = bearerToken;
+        this.hashtags = List.copyOf(hashtags);
+        this.searchQueue = searchQueue;
+        this.pipeline = pipeline;
+        this.batchSize = batchSize;
+        this.batchTimeout = batchTimeout;
+        this.backfill = backfill;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+
+        running = true;
+        thread = new Thread(this::run, "filteredStream");
+        thread.start();
+    }
+
+    public void stop() {
+        Thread thread;
+
+        synchronized (this) {
+            if (!running) return;
+
+            running = false;
+            thread = this.thread;
+            this.thread = null;
+        }
+
+        closeCurrentStream();
+        thread.interrupt();
+
+        try {
+            thread.join(Duration.ofSeconds(30).toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void run() {
+        try {
+            syncRules();
+        } catch (IOException e) {
+            log.atSevere().withCause(e).log("Could not register the stream rules");
+            running = false;
+            return;
+        } catch (InterruptedException e) {
+            running = false;
+            return;
+        }
+
+        Duration backoff = Duration.ZERO;
+        while (running) {
+            if (!backoff.isZero()) {
+                log.atInfo().log("Reconnecting to the filtered stream in %s", backoff);
+                try {
+                    Thread.sleep(backoff.toMillis());
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            try {
+                int status = consume();
+                // a cleanly closed stream is reconnected right away
+                backoff = status == 200 ? MIN_BACKOFF : nextBackoff(backoff, status == 429);
+            } catch (IOException e) {
+                if (!running) break;
+                log.atWarning().withCause(e).log("Filtered stream disconnected");
+                backoff = nextBackoff(backoff, false);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        flushAll();
+        log.atInfo().log("Filtered stream stopped");
+    }
+
+    /**
+     * Reads the stream until it ends and returns the http status of the connection.
+     */
+    private int consume() throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = httpClient.send(
+            authorized(HttpRequest.newBuilder(URI.create(baseUrl + "/2/tweets/search/stream?" + streamParameters())))
+                .GET()
+                .build(),
+            HttpResponse.BodyHandlers.ofInputStream());
+
+        if (response.statusCode() != 200) {
+            try (InputStream body = response.body()) {
+                log.atWarning().log("Filtered stream returned %d: %s", response.statusCode(),
+                    new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            return response.statusCode();
+        }
+
+        log.atInfo().log("Connected to the filtered stream for %s", hashtags);
+        currentStream = response.body();
+
+        try (BufferedReader reader = new BufferedReader(
+            new InputStreamReader(currentStream, StandardCharsets.UTF_8))) {
+            String line;
+            while (running && (line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    handleLine(line);
+                }
+                flushExpired();
+            }
+        } finally {
+            currentStream = null;
+        }
+
+        return 200;
+    }
+
+    private String streamParameters() {
+        StringBuilder parameters = new StringBuilder()
+            .append("expansions=author_id")
+            .append("&tweet.fields=").append(encode(
+                "id,created_at,text,author_id,in_reply_to_user_id,referenced_tweets,geo,public_metrics,lang,"
+                    + "context_annotations,conversation_id"))
+            .append("&user.fields=").append(encode(
+                "id,created_at,name,username,verified,profile_image_url,location,url,description"));
+
+        if (backfill && lastDataReceived != null) {
+            long missedMinutes = Duration.between(lastDataReceived, Instant.now()).toMinutes() + 1;
+            parameters.append("&backfill_minutes=").append(Math.min(MAX_BACKFILL_MINUTES, missedMinutes));
+        }
+
+        return parameters.toString();
+    }
+
+    private void handleLine(String line) throws InterruptedException {
+        JsonObject message;
+        try {
+            message = JsonParser.parseString(line).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            log.atWarning().withCause(e).log("Could not parse stream message: %s", line);
+            return;
+        }
+
+        if (!message.has("data")) {
+            log.atWarning().log("Stream message without data: %s", line);
+            return;
+        }
+
+        lastDataReceived = Instant.now();
+
+        Tweet tweet;
+        List<User> users = new ArrayList<>();
+        try {
+            tweet = Tweet.fromJson(message.get("data").toString());
+
+            if (message.has("includes") && message.getAsJsonObject("includes").has("users")) {
+                for (JsonElement user : message.getAsJsonObject("includes").getAsJsonArray("users")) {
+                    users.add(User.fromJson(user.toString()));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.atWarning().withCause(e).log("Could not read tweet from stream message: %s", line);
+            return;
+        }
+
+        for (String hashtag : matchingHashtags(message)) {
+            Batch batch = batches.computeIfAbsent(hashtag, h -> new Batch());
+            batch.tweets.add(tweet);
+            batch.addAll(users);
+
+            if (batch.tweets.size() >= batchSize) {
+                flush(hashtag);
+            }
+        }
+    }
+
+    private Set<String> matchingHashtags(JsonObject message) {
+        Set<String> matching = new HashSet<>();
+
+        if (message.has("matching_rules")) {
+            for (JsonElement rule : message.getAsJsonArray("matching_rules")) {
+                JsonElement tag = rule.getAsJsonObject().get("tag");
+                if (tag != null && tag.getAsString().startsWith(RULE_TAG_PREFIX)) {
+                    matching.add(tag.getAsString().substring(RULE_TAG_PREFIX.length()));
+                }
+            }
+        }
+
+        if (matching.isEmpty() && hashtags.size() == 1) {
+            matching.add(hashtags.get(0));
+        }
+        return matching;
+    }
+
+    private void flushExpired() throws InterruptedException {
+        Instant deadline = Instant.now().minus(batchTimeout);
+        for (String hashtag : new ArrayList<>(batches.keySet())) {
+            if (batches.get(hashtag).createdAt.isBefore(deadline)) {
+                flush(hashtag);
+            }
+        }
+    }
+
+    private void flushAll() {
+        try {
+            for (String hashtag : new ArrayList<>(batches.keySet())) {
+                flush(hashtag);
+            }
+        } catch (InterruptedException e) {
+            log.atWarning().log("Interrupted while persisting the last stream batches");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush(String hashtag) throws InterruptedException {
+        Batch batch = batches.remove(hashtag);
+        if (batch == null || batch.tweets.isEmpty()) return;
+
+        TweetSearchResponse tsr = new TweetSearchResponse()
+            .data(batch.tweets)
+            .includes(new Expansions().users(new ArrayList<>(batch.users.values())));
+
+        // the batch takes the same persistence path as a page of the recent search for that hashtag
+        HashtagSearchRequest request = new HashtagSearchRequest(searchQueue, hashtag, batch.tweets.size());
+        pipeline.submit(request, tsr, () -> { });
+    }
+
+    /**
+     * Replaces the rules this crawler registered before with one rule per hashtag.
+     */
+    private void syncRules() throws IOException, InterruptedException {
+        HttpResponse<String> existing = httpClient.send(
+            authorized(HttpRequest.newBuilder(URI.create(baseUrl + "/2/tweets/search/stream/rules"))).GET().build(),
+            HttpResponse.BodyHandlers.ofString());
+        checkStatus(existing, "load stream rules");
+
+        Map<String, String> wanted = new LinkedHashMap<>();
+        for (String hashtag : hashtags) {
+            wanted.put(RULE_TAG_PREFIX + hashtag, HashtagSearchRequest.buildQuery(hashtag));
+        }
+
+        JsonArray delete = new JsonArray();
+        JsonObject existingBody = JsonParser.parseString(existing.body()).getAsJsonObject();
+        if (existingBody.has("data")) {
+            for (JsonElement element : existingBody.getAsJsonArray("data")) {
+                JsonObject rule = element.getAsJsonObject();
+                String tag = rule.has("tag") ? rule.get("tag").getAsString() : "";
+                String value = rule.get("value").getAsString();
+
+                if (value.equals(wanted.get(tag))) {
+                    wanted.remove(tag);
+                } else if (tag.startsWith(RULE_TAG_PREFIX)) {
+                    delete.add(rule.get("id"));
+                }
+            }
+        }
+
+        if (!delete.isEmpty()) {
+            JsonObject ids = new JsonObject();
+            ids.add("ids", delete);
+            JsonObject body = new JsonObject();
+            body.add("delete", ids);
+            postRules(body, "delete stream rules");
+        }
+
+        if (!wanted.isEmpty()) {
+            JsonArray add = new JsonArray();
+            wanted.forEach((tag, value) -> {
+                JsonObject rule = new JsonObject();
+                rule.addProperty("value", value);
+                rule.addProperty("tag", tag);
+                add.add(rule);
+            });
+            JsonObject body = new JsonObject();
+            body.add("add", add);
+            postRules(body, "add stream rules");
+        }
+
+        log.atInfo().log("Stream rules registered for %s", hashtags);
+    }
+
+    private void postRules(JsonObject body, String action) throws IOException, InterruptedException {
+        HttpResponse<String> response = httpClient.send(
+            authorized(HttpRequest.newBuilder(URI.create(baseUrl + "/2/tweets/search/stream/rules")))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build(),
+            HttpResponse.BodyHandlers.ofString());
+        checkStatus(response, action);
+    }
+
+    private static void checkStatus(HttpResponse<String> response, String action) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("Could not " + action + ": " + response.statusCode() + " " + response.body());
+        }
+    }
+
+    private HttpRequest.Builder authorized(HttpRequest.Builder builder) {
+        return builder.header("Authorization", "Bearer " + bearerToken);
+    }
+
+    private void closeCurrentStream() {
+        InputStream stream = currentStream;
+        if (stream == null) return;
+
+        try {
+            stream.close();
+        } catch (IOException e) {
+            log.atFine().withCause(e).log("Could not close the stream");
+        }
+    }
+
+    static Duration nextBackoff(Duration backoff, boolean rateLimited) {
+        Duration min = rateLimited ? MIN_RATE_LIMIT_BACKOFF : MIN_BACKOFF;
+        Duration next = backoff.compareTo(min) < 0 ? min : backoff.multipliedBy(2);
+        return next.compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : next;
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static final class Batch {
+        private final Instant createdAt = Instant.now();
+        private final List<Tweet> tweets = new ArrayList<>();
+        private final Map<String, User> users = new LinkedHashMap<>();
+
+        private void addAll(List<User> users) {
+            users.forEach(user -> this.users.putIfAbsent(user.getId(), user));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package de.lukasherz.twittercrawler.data.aggregation;
+
+import de.lukasherz.twittercrawler.data.database.Storage;
+import de.lukasherz.twittercrawler.data.database.UncheckedSqlException;
+import de.lukasherz.twittercrawler.data.entities.users.UserFollowingDbEntry;
+import de.lukasherz.twittercrawler.data.entities.users.UserPreProcessedDbEntry;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Computes democrat_following, republican_following and following_base of users_pre_processed from user_following.
+ * The followings are read once as a parallel stream, which splits the id range into fork/join partitions that count
+ * into their own maps, and the maps of the partitions are merged at the end. A followed account counts as democrat or
+ * republican if it is one of the {@link SeedAccounts}.
+ * <p>
+ * The counts are written as they were when the followings were read, so it runs while no followings are crawled.
+ * A running crawler maintains and reconciles the counts itself.
+ */
+@Flogger
+public class FollowingCountAggregator {
+
+    private static final int DEMOCRAT = 0;
+    private static final int REPUBLICAN = 1;
+    private static final int TOTAL = 2;
+    private static final int BATCH_SIZE = 5000;
+
+    private final Storage storage;
+    private final SeedAccounts seeds;
+
+    public FollowingCountAggregator(Storage storage, SeedAccounts seeds) {
+        this.storage = storage;
+        this.seeds = seeds;
+    }
+
+    public static FollowingCountAggregator fromConfig(Storage storage) throws IOException {
+        return new FollowingCountAggregator(storage, SeedAccounts.fromConfig());
+    }
+
+    /**
+     * Counts the followings of every user and writes them. Returns the number of users.
+     */
+    public int run() throws SQLException {
+        long start = System.nanoTime();
+        Long2ObjectMap<int[]> counts;
+
+        try (Stream<UserFollowingDbEntry> followings = storage.streamAllFollowings()) {
+            counts = followings.parallel().collect(Long2ObjectOpenHashMap::new, this::count,
+                FollowingCountAggregator::merge);
+        } catch (UncheckedSqlException e) {
+            throw e.getCause();
+        }
+
+        log.atInfo().log("Counted the followings of %d users in %d ms", counts.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        List<UserPreProcessedDbEntry> batch = new ArrayList<>(BATCH_SIZE);
+        for (Long2ObjectMap.Entry<int[]> entry : counts.long2ObjectEntrySet()) {
+            int[] count = entry.getValue();
+            batch.add(UserPreProcessedDbEntry.builder()
+                .userId(entry.getLongKey())
+                .democratFollowing(count[DEMOCRAT])
+                .republicanFollowing(count[REPUBLICAN])
+                .followingBase(count[TOTAL])
+                .build());
+
+            if (batch.size() == BATCH_SIZE) {
+                storage.updateFollowingCounts(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            storage.updateFollowingCounts(batch);
+        }
+
+        log.atInfo().log("Updated the following counts of %d users in %d ms", counts.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return counts.size();
+    }
+
+    private void count(Long2ObjectMap<int[]> counts, UserFollowingDbEntry following) {
+        int[] count = counts.get(following.getUserId());
+        if (count == null) {
+            count = new int[3];
+            counts.put(following.getUserId(), count);
+        }
+
+        if (seeds.isDemocrat(following.getFollowingId())) {
+            count[DEMOCRAT]++;
+        }
+        if (seeds.isRepublican(following.getFollowingId())) {
+            count[REPUBLICAN]++;
+        }
+        count[TOTAL]++;
+    }
+
+    private static void merge(Long2ObjectMap<int[]> into, Long2ObjectMap<int[]> from) {
+        for (Long2ObjectMap.Entry<int[]> entry : from.long2ObjectEntrySet()) {
+            int[] count = into.putIfAbsent(entry.getLongKey(), entry.getValue());
+            if (count != null) {
+                int[] other = entry.getValue();
+                for (int i = 0; i < count.length; i++) {
+                    count[i] += other[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package de.lukasherz.twittercrawler.data.aggregation;
+
+import de.lukasherz.twittercrawler.CrawlerConfig;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * The democrat and republican accounts users are classified by, read from the files given by
+ * crawler.aggregation.democrat-seeds and crawler.aggregation.republican-seeds.
+ */
+@Flogger
+public final class SeedAccounts {
+
+    public static final SeedAccounts NONE = new SeedAccounts(LongSets.EMPTY_SET, LongSets.EMPTY_SET);
+
+    private final LongSet democrats;
+    private final LongSet republicans;
+
+    public SeedAccounts(LongSet democrats, LongSet republicans) {
+        this.democrats = democrats;
+        this.republicans = republicans;
+    }
+
+    public static SeedAccounts fromConfig() throws IOException {
+        return new SeedAccounts(
+            load(Path.of(CrawlerConfig.getString("crawler.aggregation.democrat-seeds", "democrat-seeds.txt"))),
+            load(Path.of(CrawlerConfig.getString("crawler.aggregation.republican-seeds", "republican-seeds.txt"))));
+    }
+
+    /**
+     * Reads one user id per line, empty lines and lines starting with # are skipped.
+     */
+    public static LongSet load(Path file) throws IOException {
+        LongSet seeds = new LongOpenHashSet();
+        for (String line : Files.readAllLines(file)) {
+            String id = line.trim();
+            if (!id.isEmpty() && !id.startsWith("#")) {
+                seeds.add(Long.parseLong(id));
+            }
+        }
+        log.atInfo().log("Loaded %d seed accounts from %s", seeds.size(), file);
+        return seeds;
+    }
+
+    public boolean isDemocrat(long userId) {
+        return democrats.contains(userId);
+    }
+
+    public boolean isRepublican(long userId) {
+        return republicans.contains(userId);
+    }
+}
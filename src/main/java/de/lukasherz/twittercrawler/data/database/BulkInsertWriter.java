@@ -0,0 +1,152 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import de.lukasherz.twittercrawler.CrawlerConfig;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Writes rows of one table with multi-row {@code INSERT ... VALUES (...), (...)} statements instead of one
+ * statement per row. The number of rows per statement starts at crawler.db.bulk.initial-chunk and is tuned from the
+ * observed statement latency: it grows while statements finish well below crawler.db.bulk.target-ms and is halved
+ * when they take longer. A statement never gets larger than max_allowed_packet allows.
+ */
+@Flogger
+public class BulkInsertWriter<T> {
+
+    private static final int MAX_PARAMETERS = 65535;
+    private static final int MIN_CHUNK_SIZE = 10;
+
+    private final String table;
+    private final String prefix;
+    private final String rowTemplate;
+    private final String suffix;
+    private final RowBinder<T> binder;
+    private final ToIntFunction<T> sizeEstimator;
+    private final long maxStatementBytes;
+    private final int maxChunkSize;
+    private final long targetNanos;
+    private volatile int chunkSize;
+
+    /**
+     * @param table             the table to insert into
+     * @param columns           the column list, e.g. "(id, name)"
+     * @param rowTemplate       the placeholders of one row, e.g. "(?, ?)"
+     * @param suffix            appended to every statement, e.g. "ON DUPLICATE KEY UPDATE id = id"
+     * @param binder            sets the parameters of one row
+     * @param sizeEstimator     estimated size of the values of one row in bytes
+     * @param maxAllowedPacket  max_allowed_packet of the server
+     */
+    public BulkInsertWriter(String table, String columns, String rowTemplate, String suffix, RowBinder<T> binder,
+                            ToIntFunction<T> sizeEstimator, long maxAllowedPacket) {
+        this.table = table;
+        this.prefix = "INSERT INTO " + table + " " + columns + " VALUES ";
+        this.rowTemplate = rowTemplate;
+        this.suffix = suffix.isEmpty() ? "" : " " + suffix;
+        this.binder = binder;
+        this.sizeEstimator = sizeEstimator;
+        // leave room for the protocol overhead and for escaping
+        this.maxStatementBytes = maxAllowedPacket * 3 / 4;
+
+        int parametersPerRow = (int) rowTemplate.chars().filter(c -> c == '?').count();
+        this.maxChunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(
+            CrawlerConfig.getInt("crawler.db.bulk.max-chunk", 1000),
+            MAX_PARAMETERS / Math.max(1, parametersPerRow)));
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE,
+            Math.min(maxChunkSize, CrawlerConfig.getInt("crawler.db.bulk.initial-chunk", 100)));
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(CrawlerConfig.getLong("crawler.db.bulk.target-ms", 250));
+    }
+
+    public void write(Connection connection, Collection<T> rows) throws SQLException {
+        if (rows.isEmpty()) return;
+
+        List<T> chunk = new ArrayList<>(Math.min(rows.size(), chunkSize));
+        long chunkBytes = prefix.length() + suffix.length();
+        int limit = chunkSize;
+
+        for (T row : rows) {
+            long rowBytes = sizeEstimator.applyAsInt(row) + rowTemplate.length() + 2L;
+            if (!chunk.isEmpty() && (chunk.size() >= limit || chunkBytes + rowBytes > maxStatementBytes)) {
+                writeChunk(connection, chunk, chunk.size() >= limit);
+                chunk.clear();
+                chunkBytes = prefix.length() + suffix.length();
+                limit = chunkSize;
+            }
+
+            chunk.add(row);
+            chunkBytes += rowBytes;
+        }
+
+        writeChunk(connection, chunk, chunk.size() >= limit);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    private void writeChunk(Connection connection, List<T> chunk, boolean full) throws SQLException {
+        StringBuilder sql = new StringBuilder(prefix.length() + suffix.length()
+            + chunk.size() * (rowTemplate.length() + 2));
+        sql.append(prefix);
+        for (int i = 0; i < chunk.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(rowTemplate);
+        }
+        sql.append(suffix);
+
+        long start = System.nanoTime();
+        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (T row : chunk) {
+                index = binder.bind(ps, index, row);
+            }
+            ps.executeUpdate();
+        }
+
+        // only full chunks say something about the chunk size
+        if (full) {
+            tune(System.nanoTime() - start);
+        }
+    }
+
+    private synchronized void tune(long nanos) {
+        int current = chunkSize;
+        int next = current;
+
+        if (nanos > targetNanos) {
+            next = Math.max(MIN_CHUNK_SIZE, current / 2);
+        } else if (nanos < targetNanos / 2) {
+            next = Math.min(maxChunkSize, current + Math.max(1, current / 4));
+        }
+
+        if (next != current) {
+            chunkSize = next;
+            log.atFine().log("%s: %d rows per statement (last took %d ms)", table, next,
+                TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+    }
+
+    /**
+     * Rough size of a string value in a statement, assuming the worst case of four bytes per character.
+     */
+    static int estimate(String value) {
+        return value == null ? 4 : value.length() * 4 + 2;
+    }
+
+    @FunctionalInterface
+    public interface RowBinder<T> {
+
+        /**
+         * Sets the parameters of the row starting at the given index and returns the index of the next row.
+         */
+        int bind(PreparedStatement ps, int index, T row) throws SQLException;
+    }
+}
@@ -0,0 +1,76 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+
+/**
+ * In-memory copy of the context annotation domain and entity ids and of the (domain, entity) -> context_annotations.id
+ * mapping. There are only a few thousand of them, but nearly every tweet references some, so knowing them avoids
+ * writing the same rows and resolving the same ids again for every page.
+ * <p>
+ * Only committed rows may be added, otherwise a rolled back transaction would leave ids behind that do not exist.
+ */
+public class ContextAnnotationCache {
+
+    private final LongSet domainIds = new LongOpenHashSet();
+    private final LongSet entityIds = new LongOpenHashSet();
+    private final Object2LongMap<Key> contextAnnotationIds = new Object2LongOpenHashMap<>();
+    private long hits;
+    private long misses;
+
+    public ContextAnnotationCache() {
+        contextAnnotationIds.defaultReturnValue(-1);
+    }
+
+    public synchronized boolean containsDomain(long domainId) {
+        return domainIds.contains(domainId);
+    }
+
+    public synchronized boolean containsEntity(long entityId) {
+        return entityIds.contains(entityId);
+    }
+
+    /**
+     * Returns the id of the context annotation or -1 if it is not known.
+     */
+    public synchronized long getContextAnnotationId(long domainId, long entityId) {
+        long id = contextAnnotationIds.getLong(new Key(domainId, entityId));
+        if (id < 0) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return id;
+    }
+
+    public synchronized void addDomain(long domainId) {
+        domainIds.add(domainId);
+    }
+
+    public synchronized void addEntity(long entityId) {
+        entityIds.add(entityId);
+    }
+
+    public synchronized void addContextAnnotation(long domainId, long entityId, long id) {
+        contextAnnotationIds.put(new Key(domainId, entityId), id);
+    }
+
+    public synchronized int size() {
+        return contextAnnotationIds.size();
+    }
+
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    public synchronized void clear() {
+        domainIds.clear();
+        entityIds.clear();
+        contextAnnotationIds.clear();
+    }
+
+    public record Key(long domainId, long entityId) {
+    }
+}
@@ -0,0 +1,365 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import de.lukasherz.twittercrawler.CrawlerConfig;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.flogger.Flogger;
+import org.apache.arrow.compression.CommonsCompressionFactory;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.TimeStampMilliTZVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.compression.CompressionUtil;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.ipc.message.IpcOption;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.DictionaryEncoding;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+/**
+ * Exports the rows of the data_preprocessed view to ZSTD compressed Arrow IPC files, one file per partition of the
+ * tweet id range. The partitions are read in parallel, each page of crawler.export.batch-size rows with keyset
+ * pagination on tweet_id and written as one record batch. tweet_lang and tweet_search_query are dictionary encoded,
+ * the dictionaries are read in one transaction with the tweet id range before the export and are the same in every
+ * file. Values a running crawler writes after that are not in the dictionaries, they are exported as null and
+ * counted in a warning.
+ */
+@Flogger
+public class DataPreprocessedExporter {
+
+    private static final long LANG_DICTIONARY_ID = 0;
+    private static final long SEARCH_QUERY_DICTIONARY_ID = 1;
+    private static final ArrowType.Int INDEX_TYPE = new ArrowType.Int(32, true);
+    private static final ArrowType.Timestamp TIMESTAMP_TYPE = new ArrowType.Timestamp(
+        org.apache.arrow.vector.types.TimeUnit.MILLISECOND, "UTC");
+
+    private static final Schema SCHEMA = new Schema(List.of(
+        field("tweet_id", false, new ArrowType.Int(64, true)),
+        field("user_id", false, new ArrowType.Int(64, true)),
+        field("tweet_text", false, ArrowType.Utf8.INSTANCE),
+        field("tweet_created_at", false, TIMESTAMP_TYPE),
+        new Field("tweet_search_query", new FieldType(true, INDEX_TYPE,
+            new DictionaryEncoding(SEARCH_QUERY_DICTIONARY_ID, false, INDEX_TYPE)), null),
+        field("tweet_metrics_like_count", false, INDEX_TYPE),
+        field("tweet_metrics_quote_count", false, INDEX_TYPE),
+        field("tweet_metrics_reply_count", false, INDEX_TYPE),
+        field("tweet_metrics_retweet_count", false, INDEX_TYPE),
+        new Field("tweet_lang", new FieldType(true, INDEX_TYPE,
+            new DictionaryEncoding(LANG_DICTIONARY_ID, false, INDEX_TYPE)), null),
+        field("user_creation_date", true, TIMESTAMP_TYPE),
+        field("user_username", false, ArrowType.Utf8.INSTANCE),
+        field("user_name", false, ArrowType.Utf8.INSTANCE),
+        field("user_verified", true, ArrowType.Bool.INSTANCE),
+        field("user_profile_picture_url", true, ArrowType.Utf8.INSTANCE),
+        field("user_location", true, ArrowType.Utf8.INSTANCE),
+        field("user_url", true, ArrowType.Utf8.INSTANCE),
+        field("user_biography", true, ArrowType.Utf8.INSTANCE),
+        field("user_gender", true, INDEX_TYPE),
+        field("user_political_affiliation", true, INDEX_TYPE),
+        field("user_democrat_following", true, INDEX_TYPE),
+        field("user_republican_following", true, INDEX_TYPE),
+        field("user_following_count", true, INDEX_TYPE)
+    ));
+
+    private final DatabaseManager dm;
+    private final Path directory;
+    private final int partitions;
+    private final int batchSize;
+    private final String select;
+
+    public DataPreprocessedExporter(DatabaseManager dm, Path directory) {
+        this(dm, directory, CrawlerConfig.getInt("crawler.export.partitions", 4),
+            CrawlerConfig.getInt("crawler.export.batch-size", 10000));
+    }
+
+    public DataPreprocessedExporter(DatabaseManager dm, Path directory, int partitions, int batchSize) {
+        this.dm = dm;
+        this.directory = directory;
+        this.partitions = Math.max(1, partitions);
+        this.batchSize = Math.max(1, batchSize);
+        // the materialised table has the same rows without joining again
+        this.select = "SELECT " + DataPreprocessedTable.COLUMNS + " FROM "
+            + (dm.getDataPreprocessedTable().isEnabled() ? DataPreprocessedTable.TABLE : "data_preprocessed")
+            + " WHERE tweet_id > ? AND tweet_id <= ? ORDER BY tweet_id LIMIT ?";
+    }
+
+    /**
+     * Writes the files and returns them.
+     */
+    public List<Path> export() throws SQLException, IOException, InterruptedException {
+        Files.createDirectories(directory);
+
+        // one snapshot of the range and the dictionaries under the repeatable read isolation of MySQL
+        long[] range = new long[2];
+        List<String> languages = new ArrayList<>();
+        List<String> searchQueries = new ArrayList<>();
+        boolean[] empty = new boolean[1];
+        dm.inTransaction(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("SELECT MIN(id), MAX(id) FROM tweets");
+                 ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                range[0] = rs.getLong(1);
+                empty[0] = rs.wasNull();
+                range[1] = rs.getLong(2);
+            }
+            if (empty[0]) return;
+
+            loadDistinct(connection, "lang", languages);
+            loadDistinct(connection, "search_query", searchQueries);
+        });
+        if (empty[0]) return List.of();
+
+        long min = range[0];
+        long max = range[1];
+        log.atInfo().log("Exporting data_preprocessed with %d languages and %d search queries in %d partitions",
+            languages.size(), searchQueries.size(), partitions);
+
+        ExecutorService executor = Executors.newFixedThreadPool(partitions);
+
+        try (BufferAllocator allocator = new RootAllocator()) {
+            try {
+                return exportPartitions(executor, allocator, min, max, languages, searchQueries);
+            } finally {
+                // the partitions must be done with their memory before the allocator is closed
+                executor.shutdownNow();
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        }
+    }
+
+    private List<Path> exportPartitions(ExecutorService executor, BufferAllocator allocator, long min, long max,
+                                        List<String> languages, List<String> searchQueries)
+        throws SQLException, IOException, InterruptedException {
+        List<Future<Path>> futures = new ArrayList<>();
+
+        try {
+            long step = Math.max(1, (max - min + 1) / partitions);
+            for (int i = 0; i < partitions; i++) {
+                long lower = min - 1 + step * i;
+                long upper = i == partitions - 1 ? max : lower + step;
+                Path file = directory.resolve(String.format("data_preprocessed-%03d.arrow", i));
+                BufferAllocator partitionAllocator = allocator.newChildAllocator(file.toString(), 0, Long.MAX_VALUE);
+
+                futures.add(executor.submit(() -> {
+                    try (partitionAllocator) {
+                        writePartition(partitionAllocator, file, lower, upper, languages, searchQueries);
+                        return file;
+                    }
+                }));
+            }
+
+            List<Path> files = new ArrayList<>();
+            for (Future<Path> future : futures) {
+                files.add(future.get());
+            }
+            return files;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sqlException) throw sqlException;
+            if (e.getCause() instanceof IOException ioException) throw ioException;
+            throw new IllegalStateException("Export failed", e.getCause());
+        }
+    }
+
+    private static void loadDistinct(Connection connection, String column, List<String> values) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+            "SELECT DISTINCT " + column + " FROM tweets WHERE " + column + " IS NOT NULL ORDER BY " + column)) {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    values.add(rs.getString(1));
+                }
+            }
+        }
+    }
+
+    private void writePartition(BufferAllocator allocator, Path file, long lower, long upper, List<String> languages,
+                                List<String> searchQueries) throws SQLException, IOException {
+        long start = System.nanoTime();
+        long rows = 0;
+        long missing = 0;
+
+        try (VarCharVector langValues = dictionaryVector(allocator, "tweet_lang", languages);
+             VarCharVector searchQueryValues = dictionaryVector(allocator, "tweet_search_query", searchQueries);
+             VectorSchemaRoot root = VectorSchemaRoot.create(SCHEMA, allocator);
+             FileOutputStream out = new FileOutputStream(file.toFile())) {
+            DictionaryProvider.MapDictionaryProvider provider = new DictionaryProvider.MapDictionaryProvider();
+            provider.put(new Dictionary(langValues, new DictionaryEncoding(LANG_DICTIONARY_ID, false, INDEX_TYPE)));
+            provider.put(new Dictionary(searchQueryValues,
+                new DictionaryEncoding(SEARCH_QUERY_DICTIONARY_ID, false, INDEX_TYPE)));
+
+            Map<String, Integer> langIndex = indexOf(languages);
+            Map<String, Integer> searchQueryIndex = indexOf(searchQueries);
+
+            try (ArrowFileWriter writer = new ArrowFileWriter(root, provider, out.getChannel(), Map.of(),
+                IpcOption.DEFAULT, CommonsCompressionFactory.INSTANCE, CompressionUtil.CodecType.ZSTD)) {
+                writer.start();
+
+                long after = lower;
+                while (after < upper) {
+                    root.allocateNew();
+                    int count;
+
+                    try (Connection connection = dm.getNewConnection();
+                         PreparedStatement ps = connection.prepareStatement(select)) {
+                        ps.setLong(1, after);
+                        ps.setLong(2, upper);
+                        ps.setInt(3, batchSize);
+
+                        try (ResultSet rs = ps.executeQuery()) {
+                            count = 0;
+                            while (rs.next()) {
+                                if (!setRow(root, count++, rs, langIndex, searchQueryIndex)) {
+                                    missing++;
+                                }
+                                after = rs.getLong("tweet_id");
+                            }
+                        }
+                    }
+
+                    if (count == 0) break;
+
+                    root.setRowCount(count);
+                    writer.writeBatch();
+                    rows += count;
+
+                    if (count < batchSize) break;
+                }
+
+                writer.end();
+            }
+        }
+
+        log.atInfo().log("Exported %d rows to %s in %d ms", rows, file,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (missing > 0) {
+            log.atWarning().log("%d rows of %s have a language or search query written after the export started, "
+                + "they are exported as null", missing, file);
+        }
+    }
+
+    /**
+     * Returns false if the language or search query of the row is missing from the dictionaries.
+     */
+    private static boolean setRow(VectorSchemaRoot root, int row, ResultSet rs, Map<String, Integer> langIndex,
+                                  Map<String, Integer> searchQueryIndex) throws SQLException {
+        ((BigIntVector) root.getVector("tweet_id")).setSafe(row, rs.getLong("tweet_id"));
+        ((BigIntVector) root.getVector("user_id")).setSafe(row, rs.getLong("user_id"));
+        setString(root, row, "tweet_text", rs.getString("tweet_text"));
+        setTimestamp(root, row, "tweet_created_at", rs.getTimestamp("tweet_created_at"));
+        boolean found = setIndex(root, row, "tweet_search_query", rs.getString("tweet_search_query"),
+            searchQueryIndex);
+        setInt(root, row, "tweet_metrics_like_count", rs);
+        setInt(root, row, "tweet_metrics_quote_count", rs);
+        setInt(root, row, "tweet_metrics_reply_count", rs);
+        setInt(root, row, "tweet_metrics_retweet_count", rs);
+        found &= setIndex(root, row, "tweet_lang", rs.getString("tweet_lang"), langIndex);
+        setTimestamp(root, row, "user_creation_date", rs.getTimestamp("user_creation_date"));
+        setString(root, row, "user_username", rs.getString("user_username"));
+        setString(root, row, "user_name", rs.getString("user_name"));
+
+        BitVector verified = (BitVector) root.getVector("user_verified");
+        boolean isVerified = rs.getBoolean("user_verified");
+        if (rs.wasNull()) {
+            verified.setNull(row);
+        } else {
+            verified.setSafe(row, isVerified ? 1 : 0);
+        }
+
+        setString(root, row, "user_profile_picture_url", rs.getString("user_profile_picture_url"));
+        setString(root, row, "user_location", rs.getString("user_location"));
+        setString(root, row, "user_url", rs.getString("user_url"));
+        setString(root, row, "user_biography", rs.getString("user_biography"));
+        setInt(root, row, "user_gender", rs);
+        setInt(root, row, "user_political_affiliation", rs);
+        setInt(root, row, "user_democrat_following", rs);
+        setInt(root, row, "user_republican_following", rs);
+        setInt(root, row, "user_following_count", rs);
+        return found;
+    }
+
+    private static void setString(VectorSchemaRoot root, int row, String column, String value) {
+        VarCharVector vector = (VarCharVector) root.getVector(column);
+        if (value == null) {
+            vector.setNull(row);
+        } else {
+            vector.setSafe(row, value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void setTimestamp(VectorSchemaRoot root, int row, String column, Timestamp value) {
+        TimeStampMilliTZVector vector = (TimeStampMilliTZVector) root.getVector(column);
+        if (value == null) {
+            vector.setNull(row);
+        } else {
+            vector.setSafe(row, value.getTime());
+        }
+    }
+
+    private static void setInt(VectorSchemaRoot root, int row, String column, ResultSet rs) throws SQLException {
+        IntVector vector = (IntVector) root.getVector(column);
+        int value = rs.getInt(column);
+        if (rs.wasNull()) {
+            vector.setNull(row);
+        } else {
+            vector.setSafe(row, value);
+        }
+    }
+
+    private static boolean setIndex(VectorSchemaRoot root, int row, String column, String value,
+                                    Map<String, Integer> dictionary) {
+        IntVector vector = (IntVector) root.getVector(column);
+        Integer index = value != null ? dictionary.get(value) : null;
+        if (index == null) {
+            vector.setNull(row);
+        } else {
+            vector.setSafe(row, index);
+        }
+        return value == null || index != null;
+    }
+
+    private static VarCharVector dictionaryVector(BufferAllocator allocator, String name, List<String> values) {
+        VarCharVector vector = new VarCharVector(name, allocator);
+        vector.allocateNew(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            vector.setSafe(i, values.get(i).getBytes(StandardCharsets.UTF_8));
+        }
+        vector.setValueCount(values.size());
+        return vector;
+    }
+
+    private static Map<String, Integer> indexOf(List<String> values) {
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < values.size(); i++) {
+            index.put(values.get(i), i);
+        }
+        return index;
+    }
+
+    private static Field field(String name, boolean nullable, ArrowType type) {
+        return new Field(name, new FieldType(nullable, type, null), null);
+    }
+}
@@ -0,0 +1,255 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import de.lukasherz.twittercrawler.CrawlerConfig;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Maintains data_preprocessed_materialized, a table with the rows of the data_preprocessed view, so reads do not join
+ * tweets, users and users_pre_processed again. The rows of new tweets are added in the transaction that writes the
+ * tweets, the rows of a user are replaced in the transaction that changes the users_pre_processed row of the user.
+ * Changes made to users_pre_processed outside of the crawler are picked up by {@link #check(boolean)} with repair or
+ * by {@link #rebuild()}.
+ */
+@Flogger
+public class DataPreprocessedTable {
+
+    static final String TABLE = "data_preprocessed_materialized";
+    static final String COLUMNS = "tweet_id, user_id, tweet_text, tweet_created_at, tweet_search_query, "
+        + "tweet_metrics_like_count, tweet_metrics_quote_count, tweet_metrics_reply_count, "
+        + "tweet_metrics_retweet_count, tweet_lang, user_creation_date, user_username, user_name, user_verified, "
+        + "user_profile_picture_url, user_location, user_url, user_biography, user_gender, "
+        + "user_political_affiliation, user_democrat_following, user_republican_following, user_following_count";
+    private static final int COLUMN_COUNT = 23;
+    private static final int RANGE_SIZE = 10000;
+    private static final int CHUNK_SIZE = 500;
+
+    private final DatabaseManager dm;
+    private final boolean enabled;
+
+    DataPreprocessedTable(DatabaseManager dm) {
+        this.dm = dm;
+        this.enabled = CrawlerConfig.getBoolean("crawler.db.data-preprocessed.materialized", true);
+    }
+
+    static void create(Connection connection) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+            "CREATE TABLE IF NOT EXISTS " + TABLE + " "
+                + "( "
+                + "    tweet_id                    BIGINT        NOT NULL, "
+                + "    user_id                     BIGINT        NOT NULL, "
+                + "    tweet_text                  VARCHAR(1023) NOT NULL, "
+                + "    tweet_created_at            datetime      NOT NULL, "
+                + "    tweet_search_query          VARCHAR(255)  NULL, "
+                + "    tweet_metrics_like_count    INT           NOT NULL, "
+                + "    tweet_metrics_quote_count   INT           NOT NULL, "
+                + "    tweet_metrics_reply_count   INT           NOT NULL, "
+                + "    tweet_metrics_retweet_count INT           NOT NULL, "
+                + "    tweet_lang                  VARCHAR(15)   NULL, "
+                + "    user_creation_date          datetime      NULL, "
+                + "    user_username               VARCHAR(15)   NOT NULL, "
+                + "    user_name                   VARCHAR(50)   NOT NULL, "
+                + "    user_verified               BOOL          NULL, "
+                + "    user_profile_picture_url    VARCHAR(1023) NULL, "
+                + "    user_location               VARCHAR(255)  NULL, "
+                + "    user_url                    VARCHAR(1023) NULL, "
+                + "    user_biography              VARCHAR(1023) NULL, "
+                + "    user_gender                 INTEGER, "
+                + "    user_political_affiliation  INTEGER, "
+                + "    user_democrat_following     INTEGER, "
+                + "    user_republican_following   INTEGER, "
+                + "    user_following_count        INTEGER, "
+                + "    PRIMARY KEY (tweet_id), "
+                + "    INDEX (user_id), "
+                + "    INDEX (tweet_created_at), "
+                + "    INDEX (tweet_search_query) "
+                + ");")) {
+            ps.execute();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Materialises the rows of the tweets, on the connection of the transaction that wrote them.
+     */
+    void refreshTweets(Connection connection, Collection<Long> tweetIds) throws SQLException {
+        if (enabled) {
+            replace(connection, "tweet_id", new ArrayList<>(tweetIds));
+        }
+    }
+
+    /**
+     * Materialises the rows of all tweets of the users again, on the connection of the transaction that changed their
+     * users_pre_processed rows.
+     */
+    void refreshUsers(Connection connection, Collection<Long> userIds) throws SQLException {
+        if (enabled) {
+            replace(connection, "user_id", new ArrayList<>(userIds));
+        }
+    }
+
+    private void replace(Connection connection, String column, List<Long> ids) throws SQLException {
+        for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + CHUNK_SIZE));
+            String in = column + " IN (" + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")";
+
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE " + in);
+                 PreparedStatement insert = connection.prepareStatement("INSERT INTO " + TABLE + " (" + COLUMNS
+                     + ") SELECT " + COLUMNS + " FROM data_preprocessed WHERE " + in)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    delete.setLong(i + 1, chunk.get(i));
+                    insert.setLong(i + 1, chunk.get(i));
+                }
+                delete.executeUpdate();
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Fills the table again from the view, one transaction per range of 10000 tweets. Every range is replaced on its
+     * own, so the table stays complete while it is rebuilt.
+     */
+    public void rebuild() throws SQLException {
+        long start = System.nanoTime();
+        long rows = 0;
+
+        long after = Long.MIN_VALUE;
+        Long end;
+        while ((end = nextRangeEnd(after)) != null) {
+            long lower = after;
+            long upper = end;
+            long[] inserted = new long[1];
+            dm.inTransaction(connection -> inserted[0] = replaceRange(connection, lower, upper));
+            rows += inserted[0];
+            after = upper;
+
+            log.atInfo().atMostEvery(10, TimeUnit.SECONDS)
+                .log("Materialised %d rows of data_preprocessed so far", rows);
+        }
+
+        // rows of tweets above the last range, e.g. of tweets deleted since the table was filled
+        long last = after;
+        dm.inTransaction(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE tweet_id > ?")) {
+                ps.setLong(1, last);
+                ps.executeUpdate();
+            }
+        });
+
+        log.atInfo().log("Materialised %d rows of data_preprocessed in %d s", rows,
+            TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+    }
+
+    /**
+     * Compares the table with the view range by range, by the number of rows and a hash of their values.
+     *
+     * @param repair whether ranges that differ are materialised again
+     * @return the number of ranges that differ
+     */
+    public int check(boolean repair) throws SQLException {
+        int ranges = 0;
+        int mismatches = 0;
+
+        long after = Long.MIN_VALUE;
+        Long end;
+        while ((end = nextRangeEnd(after)) != null) {
+            long lower = after;
+            long upper = end;
+            ranges++;
+
+            RangeChecksum expected = checksum("data_preprocessed", lower, upper);
+            RangeChecksum actual = checksum(TABLE, lower, upper);
+            if (!expected.equals(actual)) {
+                mismatches++;
+                log.atWarning().log("Tweets (%d, %d]: %d rows in data_preprocessed, %d materialised%s", lower, upper,
+                    expected.rows(), actual.rows(), expected.rows() == actual.rows() ? " with different values" : "");
+
+                if (repair) {
+                    dm.inTransaction(connection -> replaceRange(connection, lower, upper));
+                }
+            }
+            after = upper;
+        }
+
+        log.atInfo().log("Checked %d ranges of data_preprocessed, %d differ%s", ranges, mismatches,
+            repair && mismatches > 0 ? " and were repaired" : "");
+        return mismatches;
+    }
+
+    private long replaceRange(Connection connection, long lower, long upper) throws SQLException {
+        try (PreparedStatement delete = connection.prepareStatement(
+            "DELETE FROM " + TABLE + " WHERE tweet_id > ? AND tweet_id <= ?");
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO " + TABLE + " (" + COLUMNS
+                 + ") SELECT " + COLUMNS + " FROM data_preprocessed WHERE tweet_id > ? AND tweet_id <= ?")) {
+            delete.setLong(1, lower);
+            delete.setLong(2, upper);
+            delete.executeUpdate();
+
+            insert.setLong(1, lower);
+            insert.setLong(2, upper);
+            return insert.executeUpdate();
+        }
+    }
+
+    /**
+     * Returns the id of the 10000th tweet after the given id, or of the last one if there are fewer, or null if there
+     * are none.
+     */
+    private Long nextRangeEnd(long after) throws SQLException {
+        try (Connection connection = dm.getNewConnection(); PreparedStatement ps = connection.prepareStatement(
+            "SELECT MAX(id) FROM (SELECT id FROM tweets WHERE id > ? ORDER BY id LIMIT ?) range_ids")) {
+            ps.setLong(1, after);
+            ps.setInt(2, RANGE_SIZE);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                long upper = rs.getLong(1);
+                return rs.wasNull() ? null : upper;
+            }
+        }
+    }
+
+    private RangeChecksum checksum(String table, long lower, long upper) throws SQLException {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        long rows = 0;
+
+        try (Connection connection = dm.getNewConnection(); PreparedStatement ps = connection.prepareStatement(
+            "SELECT " + COLUMNS + " FROM " + table + " WHERE tweet_id > ? AND tweet_id <= ? ORDER BY tweet_id")) {
+            ps.setLong(1, lower);
+            ps.setLong(2, upper);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    rows++;
+                    for (int i = 1; i <= COLUMN_COUNT; i++) {
+                        String value = rs.getString(i);
+                        if (value == null) {
+                            hasher.putInt(-1);
+                        } else {
+                            hasher.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+                        }
+                    }
+                }
+            }
+        }
+
+        return new RangeChecksum(rows, hasher.hash());
+    }
+
+    private record RangeChecksum(long rows, HashCode hash) {
+    }
+}
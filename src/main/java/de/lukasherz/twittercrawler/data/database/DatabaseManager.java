@@ -1,7 +1,8 @@
 package de.lukasherz.twittercrawler.data.database;
 
-import com.zaxxer.hikari.HikariConfig;
+import com.google.common.cache.CacheStats;
 import com.zaxxer.hikari.HikariDataSource;
+import de.lukasherz.twittercrawler.CrawlerConfig;
 import de.lukasherz.twittercrawler.data.entities.tweets.TweetDbEntry;
 import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.ContextAnnotationDbEntry;
 import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.ContextAnnotationDomainDbEntry;
@@ -9,6 +10,9 @@ import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.Contex
 import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.TweetContextAnnotationDbEntry;
 import de.lukasherz.twittercrawler.data.entities.users.UserDbEntry;
 import de.lukasherz.twittercrawler.data.entities.users.UserFollowingDbEntry;
+import de.lukasherz.twittercrawler.data.entities.users.UserPreProcessedDbEntry;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Connection;
@@ -16,23 +20,56 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import lombok.extern.flogger.Flogger;
 
+/**
+ * The {@link Storage} on a relational database, MySQL or an embedded H2 file depending on the {@link StorageBackend}.
+ */
 @Flogger
-public class DatabaseManager {
+public class DatabaseManager implements Storage {
+
+    private static final int SELECT_CHUNK_SIZE = 500;
 
     private static DatabaseManager instance;
+    private final StorageBackend backend;
     private HikariDataSource hikariDataSource;
-
-    private DatabaseManager() {
-        log.atInfo().log("DatabaseManager starting...");
-
-        hikariDataSource = new HikariDataSource(createHikariConfig());
+    private final BulkInsertWriter<UserDbEntry> usersWriter;
+    private final BulkInsertWriter<UserFollowingDbEntry> followingsWriter;
+    private final BulkInsertWriter<ContextAnnotationDomainDbEntry> contextAnnotationDomainsWriter;
+    private final BulkInsertWriter<ContextAnnotationEntityDbEntry> contextAnnotationEntitiesWriter;
+    private final BulkInsertWriter<ContextAnnotationDbEntry> contextAnnotationsWriter;
+    private final BulkInsertWriter<TweetDbEntry> tweetsWriter;
+    private final BulkInsertWriter<TweetContextAnnotationDbEntry> tweetContextAnnotationsWriter;
+    private final BulkInsertWriter<UserPreProcessedDbEntry> usersPreProcessedWriter;
+    private final DataPreprocessedTable dataPreprocessedTable = new DataPreprocessedTable(this);
+    private final FollowingCountsMaintainer followingCountsMaintainer = new FollowingCountsMaintainer(this);
+    private final ContextAnnotationCache contextAnnotationCache = new ContextAnnotationCache();
+    private boolean contextAnnotationCacheWarm;
+    private WriteBehindBuffer writeBehindBuffer;
+    private final LookupCache<UserDbEntry> userCache = new LookupCache<>();
+    private final LookupCache<TweetDbEntry> tweetCache = new LookupCache<>();
+
+    private DatabaseManager(StorageBackend backend, Properties properties) {
+        log.atInfo().log("DatabaseManager starting with %s...", backend);
+
+        this.backend = backend;
+        hikariDataSource = new HikariDataSource(backend.createHikariConfig(properties));
 
         // init database
         try {
@@ -41,17 +78,148 @@ public class DatabaseManager {
             log.atSevere().withCause(e).log("could not init database");
         }
 
+        long maxAllowedPacket = loadMaxAllowedPacket();
+
+        usersWriter = new BulkInsertWriter<>("users",
+            "(id, creation_date, username, name, verified, profile_picture_url, location, url, biography)",
+            "(?, ?, ?, ?, ?, ?, ?, ?, ?)", "ON DUPLICATE KEY UPDATE id = id",
+            (ps, i, user) -> {
+                ps.setLong(i, user.getId());
+                ps.setTimestamp(i + 1, user.getCreationDate() != null ? Timestamp.from(user.getCreationDate()) : null);
+                ps.setString(i + 2, user.getUsername());
+                ps.setString(i + 3, user.getName());
+                ps.setBoolean(i + 4, user.isVerified());
+                ps.setString(i + 5, user.getProfilePictureUrl());
+                ps.setString(i + 6, user.getLocation());
+                ps.setString(i + 7, user.getUrl());
+                ps.setString(i + 8, user.getBiography());
+                return i + 9;
+            },
+            user -> 64 + BulkInsertWriter.estimate(user.getUsername()) + BulkInsertWriter.estimate(user.getName())
+                + BulkInsertWriter.estimate(user.getProfilePictureUrl()) + BulkInsertWriter.estimate(user.getLocation())
+                + BulkInsertWriter.estimate(user.getUrl()) + BulkInsertWriter.estimate(user.getBiography()),
+            maxAllowedPacket);
+
+        followingsWriter = new BulkInsertWriter<>("user_following", "(user_id, following_id)", "(?, ?)",
+            "ON DUPLICATE KEY UPDATE id = id",
+            (ps, i, following) -> {
+                ps.setLong(i, following.getUserId());
+                ps.setLong(i + 1, following.getFollowingId());
+                return i + 2;
+            },
+            following -> 40,
+            maxAllowedPacket);
+
+        contextAnnotationDomainsWriter = new BulkInsertWriter<>("context_annotation_domains",
+            "(id, name, description)", "(?, ?, ?)", "ON DUPLICATE KEY UPDATE id = id",
+            (ps, i, domain) -> {
+                ps.setLong(i, domain.getId());
+                ps.setString(i + 1, domain.getName());
+                ps.setString(i + 2, domain.getDescription());
+                return i + 3;
+            },
+            domain -> 20 + BulkInsertWriter.estimate(domain.getName())
+                + BulkInsertWriter.estimate(domain.getDescription()),
+            maxAllowedPacket);
+
+        contextAnnotationEntitiesWriter = new BulkInsertWriter<>("context_annotation_entities",
+            "(id, name, description)", "(?, ?, ?)", "ON DUPLICATE KEY UPDATE id = id",
+            (ps, i, entity) -> {
+                ps.setLong(i, entity.getId());
+                ps.setString(i + 1, entity.getName());
+                ps.setString(i + 2, entity.getDescription());
+                return i + 3;
+            },
+            entity -> 20 + BulkInsertWriter.estimate(entity.getName())
+                + BulkInsertWriter.estimate(entity.getDescription()),
+            maxAllowedPacket);
+
+        contextAnnotationsWriter = new BulkInsertWriter<>("context_annotations",
+            "(context_annotation_domain_id, context_annotation_entity_id)", "(?, ?)",
+            "ON DUPLICATE KEY UPDATE id = id",
+            (ps, i, ca) -> {
+                ps.setLong(i, ca.getContextAnnotationDomainId());
+                ps.setLong(i + 1, ca.getContextAnnotationEntityId());
+                return i + 2;
+            },
+            ca -> 40,
+            maxAllowedPacket);
+
+        tweetsWriter = new BulkInsertWriter<>("tweets",
+            "(id, author_id, text, created_at, metrics_retweet_count, metrics_like_count, metrics_reply_count, "
+                + "metrics_quote_count, lang, geo, search_query)",
+            "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", "ON DUPLICATE KEY UPDATE id = id",
+            (ps, i, tweet) -> {
+                ps.setLong(i, tweet.getId());
+                ps.setLong(i + 1, tweet.getAuthorId());
+                ps.setString(i + 2, tweet.getText());
+                ps.setTimestamp(i + 3, Timestamp.from(tweet.getCreatedAt()));
+                ps.setInt(i + 4, tweet.getMetricsRetweetCount());
+                ps.setInt(i + 5, tweet.getMetricsLikeCount());
+                ps.setInt(i + 6, tweet.getMetricsReplyCount());
+                ps.setInt(i + 7, tweet.getMetricsQuoteCount());
+                ps.setString(i + 8, tweet.getLang());
+                ps.setString(i + 9, tweet.getGeo());
+                ps.setString(i + 10, tweet.getSearchQuery());
+                return i + 11;
+            },
+            tweet -> 120 + BulkInsertWriter.estimate(tweet.getText()) + BulkInsertWriter.estimate(tweet.getLang())
+                + BulkInsertWriter.estimate(tweet.getGeo()) + BulkInsertWriter.estimate(tweet.getSearchQuery()),
+            maxAllowedPacket);
+
+        tweetContextAnnotationsWriter = new BulkInsertWriter<>("tweet_context_annotations",
+            "(tweet_id, context_annotation_id)", "(?, ?)", "ON DUPLICATE KEY UPDATE id = id",
+            (ps, i, tca) -> {
+                ps.setLong(i, tca.getTweetId());
+                ps.setLong(i + 1, tca.getContextAnnotationId());
+                return i + 2;
+            },
+            tca -> 40,
+            maxAllowedPacket);
+
+        usersPreProcessedWriter = new BulkInsertWriter<>("users_pre_processed",
+            "(id, user_id, gender, political_affiliation, democrat_following, republican_following, following_base)",
+            "(?, ?, ?, ?, ?, ?, ?)",
+            "ON DUPLICATE KEY UPDATE user_id = VALUES(user_id), gender = VALUES(gender), "
+                + "political_affiliation = VALUES(political_affiliation), "
+                + "democrat_following = VALUES(democrat_following), "
+                + "republican_following = VALUES(republican_following), following_base = VALUES(following_base)",
+            (ps, i, upp) -> {
+                ps.setLong(i, upp.getId());
+                ps.setLong(i + 1, upp.getUserId());
+                ps.setInt(i + 2, upp.getGender());
+                ps.setInt(i + 3, upp.getPoliticalAffiliation());
+                ps.setInt(i + 4, upp.getDemocratFollowing());
+                ps.setInt(i + 5, upp.getRepublicanFollowing());
+                ps.setInt(i + 6, upp.getFollowingBase());
+                return i + 7;
+            },
+            upp -> 80,
+            maxAllowedPacket);
+
         log.atInfo().log("DatabaseManager started");
     }
 
     public static DatabaseManager getInstance() {
         if (instance == null) {
-            instance = new DatabaseManager();
+            instance = new DatabaseManager(
+                StorageBackend.fromName(CrawlerConfig.getString("crawler.storage.backend", "mysql")),
+                loadProperties());
         }
         return instance;
     }
 
-    private static HikariConfig createHikariConfig() {
+    /**
+     * Opens another database besides the one of {@link #getInstance()}, e.g. to merge the crawl of an edge box. The
+     * properties override config.properties.
+     */
+    public static DatabaseManager open(StorageBackend backend, Properties overrides) {
+        Properties properties = loadProperties();
+        properties.putAll(overrides);
+        return new DatabaseManager(backend, properties);
+    }
+
+    private static Properties loadProperties() {
         InputStream is = DatabaseManager.class.getClassLoader().getResourceAsStream("config.properties");
 
         Properties properties = new Properties();
@@ -72,23 +240,248 @@ public class DatabaseManager {
             log.atSevere().log("Could not load config.properties");
         }
 
-        HikariConfig config = new HikariConfig();
-        config.setJdbcUrl(properties.getProperty("jdbc.url"));
-        config.setUsername(properties.getProperty("jdbc.username"));
-        config.setPassword(properties.getProperty("jdbc.password"));
-        config.addDataSourceProperty("useSSL", properties.getProperty("jdbc.useSSL"));
-        config.addDataSourceProperty("serverTimezone", properties.getProperty("jdbc.serverTimezone"));
-        config.addDataSourceProperty("allowPublicKeyRetrieval", properties.getProperty("jdbc.allowPublicKeyRetrieval"));
-        config.setDriverClassName("com.mysql.cj.jdbc.Driver");
-        config.setMaximumPoolSize(5);
+        return properties;
+    }
+
+    /**
+     * Answers the ids the lookup cache holds and queries the rest. Found ids are not cached because only their id is
+     * read.
+     */
+    private <V> LongSet existsCached(LookupCache<V> cache, String select, long[] ids) throws SQLException {
+        LongSet existing = new LongOpenHashSet();
+        LongSet unknown = new LongOpenHashSet();
+        for (long id : ids) {
+            if (cache.contains(id)) {
+                existing.add(id);
+            } else {
+                unknown.add(id);
+            }
+        }
+        if (unknown.isEmpty()) return existing;
+
+        existing.addAll(selectIdsIn(select, unknown.toLongArray()));
+        return existing;
+    }
+
+    /**
+     * Runs the select, which has to end with "IN ", once per chunk of ids and collects the first column.
+     *
+     * @param leadingParameters parameters that come before the ids
+     */
+    private LongSet selectIdsIn(String select, long[] ids, long... leadingParameters) throws SQLException {
+        if (ids.length == 0) return new LongOpenHashSet();
+
+        try (Connection connection = getNewConnection()) {
+            return selectIdsIn(connection, select, ids, leadingParameters);
+        }
+    }
+
+    LongSet selectIdsIn(Connection connection, String select, long[] ids, long... leadingParameters)
+        throws SQLException {
+        LongSet result = new LongOpenHashSet();
+
+        for (int from = 0; from < ids.length; from += SELECT_CHUNK_SIZE) {
+            int to = Math.min(ids.length, from + SELECT_CHUNK_SIZE);
+
+            try (PreparedStatement ps = connection.prepareStatement(
+                select + "(" + String.join(", ", Collections.nCopies(to - from, "?")) + ")")) {
+                int index = 1;
+                for (long parameter : leadingParameters) {
+                    ps.setLong(index++, parameter);
+                }
+                for (int i = from; i < to; i++) {
+                    ps.setLong(index++, ids[i]);
+                }
+
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(rs.getLong(1));
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public CacheStats getUserCacheStats() {
+        return userCache.stats();
+    }
+
+    public CacheStats getTweetCacheStats() {
+        return tweetCache.stats();
+    }
 
-        return config;
+    /**
+     * Drops the users from the lookup cache, called once rows written for them are committed.
+     */
+    void invalidateUsers(Iterable<Long> ids) {
+        userCache.invalidateAll(ids);
     }
 
-    private Connection getNewConnection() throws SQLException {
+    void invalidateTweets(Iterable<Long> ids) {
+        tweetCache.invalidateAll(ids);
+    }
+
+    Connection getNewConnection() throws SQLException {
         return hikariDataSource.getConnection();
     }
 
+    private long loadMaxAllowedPacket() {
+        try (Connection connection = getNewConnection()) {
+            return backend.loadMaxAllowedPacket(connection);
+        } catch (SQLException e) {
+            log.atWarning().withCause(e).log("Could not read max_allowed_packet, assuming 4 MiB");
+        }
+        return 4L * 1024 * 1024;
+    }
+
+    public StorageBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Writes what is buffered and closes the connections. Only needed for databases from
+     * {@link #open(StorageBackend, Properties)}, the one of {@link #getInstance()} lives as long as the crawler.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (writeBehindBuffer != null) {
+                writeBehindBuffer.close();
+            }
+        }
+        hikariDataSource.close();
+    }
+
+    public DataPreprocessedTable getDataPreprocessedTable() {
+        return dataPreprocessedTable;
+    }
+
+    @Override
+    public UnitOfWork newUnitOfWork() {
+        return new UnitOfWork(this);
+    }
+
+    /**
+     * Returns the buffer that writes units of work of many requests in group commits.
+     */
+    public synchronized WriteBehindBuffer getWriteBehindBuffer() {
+        if (writeBehindBuffer == null) {
+            writeBehindBuffer = new WriteBehindBuffer(this);
+        }
+        return writeBehindBuffer;
+    }
+
+    /**
+     * Returns the cache of the known context annotation ids, loading it from the database on first use.
+     */
+    public synchronized ContextAnnotationCache getContextAnnotationCache() {
+        if (!contextAnnotationCacheWarm) {
+            try {
+                warmContextAnnotationCache();
+                contextAnnotationCacheWarm = true;
+            } catch (SQLException e) {
+                // the cache only saves work, everything it does not know is written and resolved again
+                log.atWarning().withCause(e).log("Could not load the context annotation cache");
+                contextAnnotationCache.clear();
+            }
+        }
+        return contextAnnotationCache;
+    }
+
+    private void warmContextAnnotationCache() throws SQLException {
+        try (Connection connection = getNewConnection()) {
+            try (PreparedStatement ps = connection.prepareStatement("SELECT id FROM context_annotation_domains");
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    contextAnnotationCache.addDomain(rs.getLong("id"));
+                }
+            }
+
+            try (PreparedStatement ps = connection.prepareStatement("SELECT id FROM context_annotation_entities");
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    contextAnnotationCache.addEntity(rs.getLong("id"));
+                }
+            }
+
+            try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT id, context_annotation_domain_id, context_annotation_entity_id FROM context_annotations");
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    contextAnnotationCache.addContextAnnotation(
+                        rs.getLong("context_annotation_domain_id"),
+                        rs.getLong("context_annotation_entity_id"),
+                        rs.getLong("id"));
+                }
+            }
+        }
+
+        log.atInfo().log("Loaded %d context annotations into the cache", contextAnnotationCache.size());
+    }
+
+    /**
+     * Looks up the ids of the given context annotations. Annotations that do not exist are missing in the result.
+     */
+    Map<ContextAnnotationCache.Key, Long> selectContextAnnotationIds(Connection connection,
+                                                                     Collection<ContextAnnotationCache.Key> keys)
+        throws SQLException {
+        Map<ContextAnnotationCache.Key, Long> ids = new HashMap<>();
+        List<ContextAnnotationCache.Key> remaining = new ArrayList<>(keys);
+
+        for (int from = 0; from < remaining.size(); from += SELECT_CHUNK_SIZE) {
+            List<ContextAnnotationCache.Key> chunk =
+                remaining.subList(from, Math.min(remaining.size(), from + SELECT_CHUNK_SIZE));
+
+            try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT id, context_annotation_domain_id, context_annotation_entity_id FROM context_annotations "
+                    + "WHERE (context_annotation_domain_id, context_annotation_entity_id) IN ("
+                    + String.join(", ", Collections.nCopies(chunk.size(), "(?, ?)")) + ")")) {
+                int index = 1;
+                for (ContextAnnotationCache.Key key : chunk) {
+                    ps.setLong(index++, key.domainId());
+                    ps.setLong(index++, key.entityId());
+                }
+
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        ids.put(new ContextAnnotationCache.Key(
+                                rs.getLong("context_annotation_domain_id"),
+                                rs.getLong("context_annotation_entity_id")),
+                            rs.getLong("id"));
+                    }
+                }
+            }
+        }
+
+        return ids;
+    }
+
+    /**
+     * Runs the work on one connection in one transaction, which is rolled back if the work fails.
+     */
+    void inTransaction(SqlWork work) throws SQLException {
+        try (Connection connection = getNewConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                work.run(connection);
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface SqlWork {
+        void run(Connection connection) throws SQLException;
+    }
+
     private void initDatabase() throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "CREATE TABLE IF NOT EXISTS users" +
@@ -194,18 +587,28 @@ public class DatabaseManager {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "CREATE TABLE IF NOT EXISTS users_pre_processed "
                 + "( "
-                + "    id                    BIGINT PRIMARY KEY, "
+                + "    id                    BIGINT AUTO_INCREMENT PRIMARY KEY, "
                 + "    user_id               BIGINT, "
                 + "    gender                INTEGER, "
                 + "    political_affiliation INTEGER, "
                 + "    democrat_following    INTEGER, "
                 + "    republican_following  INTEGER, "
                 + "    following_base        INTEGER, "
+                + "    UNIQUE (user_id), "
                 + "    FOREIGN KEY (user_id) REFERENCES users (id) ON UPDATE RESTRICT ON DELETE CASCADE "
                 + ");")) {
             ps.execute();
         }
 
+        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
+            "CREATE TABLE IF NOT EXISTS search_high_water_marks "
+                + "( "
+                + "    search_query VARCHAR(255) PRIMARY KEY, "
+                + "    max_tweet_id BIGINT NOT NULL "
+                + ");")) {
+            ps.execute();
+        }
+
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "CREATE OR REPLACE VIEW data_preprocessed AS "
                 + "SELECT tweets.id                                 as tweet_id, "
@@ -239,6 +642,10 @@ public class DatabaseManager {
             ps.execute();
         }
 
+        try (Connection connection = getNewConnection()) {
+            DataPreprocessedTable.create(connection);
+        }
+
 //        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
 //            "CREATE TABLE IF NOT EXISTS tweet_references_extern(" +
 //                "    id                  BIGINT AUTO_INCREMENT," +
@@ -253,104 +660,104 @@ public class DatabaseManager {
 //        }
     }
 
+    @Override
     public void insertUser(UserDbEntry userDbEntry) throws SQLException {
         insertUsers(Collections.singletonList(userDbEntry));
     }
 
+    @Override
     public void insertUsers(List<UserDbEntry> userDbEntries) throws SQLException {
-        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
-            "INSERT INTO users (id, creation_date, username, name, verified, profile_picture_url, location, url, " +
-                "biography) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE id = id")) {
-            for (UserDbEntry userDbEntry : userDbEntries) {
-                ps.setLong(1, userDbEntry.getId());
-                ps.setTimestamp(2,
-                    userDbEntry.getCreationDate() != null ? Timestamp.from(userDbEntry.getCreationDate()) : null);
-                ps.setString(3, userDbEntry.getUsername());
-                ps.setString(4, userDbEntry.getName());
-                ps.setBoolean(5, userDbEntry.isVerified());
-                ps.setString(6, userDbEntry.getProfilePictureUrl());
-                ps.setString(7, userDbEntry.getLocation());
-                ps.setString(8, userDbEntry.getUrl());
-                ps.setString(9, userDbEntry.getBiography());
-                ps.addBatch();
-            }
-            ps.executeBatch();
+        try (Connection connection = getNewConnection()) {
+            insertUsers(connection, userDbEntries);
         }
+        invalidateUsers(userDbEntries.stream().map(UserDbEntry::getId).toList());
     }
 
+    void insertUsers(Connection connection, List<UserDbEntry> userDbEntries) throws SQLException {
+        usersWriter.write(connection, userDbEntries);
+    }
+
+    @Override
     public boolean existsUser(long id) throws SQLException {
-        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
-            "SELECT id FROM users WHERE id = ?")) {
-            ps.setLong(1, id);
-            try (ResultSet rs = ps.executeQuery()) {
-                return rs.next();
-            }
-        }
+        // loads the whole row, a primary key lookup costs the same and the next getUser is answered from the cache
+        return getUser(id).isPresent();
+    }
+
+    /**
+     * Returns the ids of the given users that exist, with one query per 500 ids that are not cached.
+     */
+    @Override
+    public LongSet existsUsers(long... ids) throws SQLException {
+        return existsCached(userCache, "SELECT id FROM users WHERE id IN ", ids);
+    }
+
+    @Override
+    public LongSet existsUsers(Collection<Long> ids) throws SQLException {
+        return existsUsers(ids.stream().mapToLong(Long::longValue).toArray());
     }
 
+    @Override
     public Optional<UserDbEntry> getUser(long id) throws SQLException {
+        return userCache.get(id, () -> loadUser(id));
+    }
+
+    private Optional<UserDbEntry> loadUser(long id) throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT * FROM users WHERE id = ?")) {
             ps.setLong(1, id);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    return Optional.of(new UserDbEntry(
-                        rs.getLong("id"),
-                        rs.getTimestamp("creation_date").toInstant(),
-                        rs.getString("username"),
-                        rs.getString("name"),
-                        rs.getBoolean("verified"),
-                        rs.getString("profile_picture_url"),
-                        rs.getString("location"),
-                        rs.getString("url"),
-                        rs.getString("biography")
-                    ));
+                    return Optional.of(mapUser(rs));
                 }
             }
         }
         return Optional.empty();
     }
 
+    @Override
     public List<UserDbEntry> getAllUsers() throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT * FROM users")) {
             try (ResultSet rs = ps.executeQuery()) {
                 List<UserDbEntry> userDbEntries = new ArrayList<>();
                 while (rs.next()) {
-                    userDbEntries.add(new UserDbEntry(
-                        rs.getLong("id"),
-                        rs.getTimestamp("creation_date").toInstant(),
-                        rs.getString("username"),
-                        rs.getString("name"),
-                        rs.getBoolean("verified"),
-                        rs.getString("profile_picture_url"),
-                        rs.getString("location"),
-                        rs.getString("url"),
-                        rs.getString("biography")
-                    ));
+                    userDbEntries.add(mapUser(rs));
                 }
                 return userDbEntries;
             }
         }
     }
 
+    /**
+     * Streams all users ordered by id, reading crawler.db.stream.page-size rows at a time. The stream is lazy and
+     * can be split for parallel processing.
+     */
+    @Override
+    public Stream<UserDbEntry> streamAllUsers() throws SQLException {
+        return streamTable("users", "SELECT * FROM users", DatabaseManager::mapUser);
+    }
+
+    @Override
     public void insertFollowing(long userId, long followingId) throws SQLException {
         insertFollowings(userId, Collections.singletonList(followingId));
     }
 
+    @Override
     public void insertFollowings(long userId, List<Long> followingIds) throws SQLException {
-        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
-            "INSERT INTO user_following (user_id, following_id) VALUES (?, ?) ON DUPLICATE KEY UPDATE id = id")) {
-            for (long followingId : followingIds) {
-                ps.setLong(1, userId);
-                ps.setLong(2, followingId);
+        inTransaction(connection -> insertFollowings(connection, userId, followingIds));
+    }
 
-                ps.addBatch();
-            }
-            ps.executeBatch();
-        }
+    /**
+     * Writes the followings and, in the same transaction, adds the new ones to the following counts of the user.
+     */
+    void insertFollowings(Connection connection, long userId, List<Long> followingIds) throws SQLException {
+        followingCountsMaintainer.addFollowings(connection, userId, followingIds);
+        followingsWriter.write(connection, followingIds.stream()
+            .map(followingId -> UserFollowingDbEntry.builder().userId(userId).followingId(followingId).build())
+            .toList());
     }
 
+    @Override
     public boolean isFollowing(long userId, long followingId) throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT * FROM user_following WHERE user_id = ? AND following_id = ?")) {
@@ -363,6 +770,21 @@ public class DatabaseManager {
         }
     }
 
+    /**
+     * Returns the ids of the given users the user follows, with one query per 500 ids.
+     */
+    @Override
+    public LongSet existsFollowings(long userId, long... followingIds) throws SQLException {
+        return selectIdsIn("SELECT following_id FROM user_following WHERE user_id = ? AND following_id IN ",
+            new LongOpenHashSet(followingIds).toLongArray(), userId);
+    }
+
+    @Override
+    public LongSet existsFollowings(long userId, Collection<Long> followingIds) throws SQLException {
+        return existsFollowings(userId, followingIds.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    @Override
     public Optional<UserFollowingDbEntry> getFollowing(long userId, long followingId) throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT * FROM user_following WHERE user_id = ? AND following_id = ?")) {
@@ -382,6 +804,7 @@ public class DatabaseManager {
         return Optional.empty();
     }
 
+    @Override
     public List<UserFollowingDbEntry> getAllFollowings(long userId) throws SQLException {
         List<UserFollowingDbEntry> followings = new ArrayList<>();
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
@@ -402,23 +825,244 @@ public class DatabaseManager {
         return followings;
     }
 
+    @Override
+    public Stream<UserFollowingDbEntry> streamAllFollowings() throws SQLException {
+        return streamTable("user_following", "SELECT id, user_id, following_id FROM user_following",
+            rs -> new UserFollowingDbEntry(rs.getLong("id"), rs.getLong("user_id"), rs.getLong("following_id")));
+    }
+
+    /**
+     * Streams all followings ordered by user and followed user, paged along the (user_id, following_id) index. Unlike
+     * {@link #streamAllFollowings()} the followings of a user are adjacent, but the stream cannot be split.
+     */
+    @Override
+    public Stream<UserFollowingDbEntry> streamFollowingsByUser() throws SQLException {
+        int pageSize = CrawlerConfig.getInt("crawler.db.stream.page-size", 5000);
+
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<UserFollowingDbEntry>(Long.MAX_VALUE,
+            Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT) {
+            private final Deque<UserFollowingDbEntry> page = new ArrayDeque<>();
+            private long userId = Long.MIN_VALUE;
+            private long followingId = Long.MIN_VALUE;
+            private boolean exhausted;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super UserFollowingDbEntry> action) {
+                if (page.isEmpty() && !exhausted) {
+                    fetchPage();
+                }
+
+                UserFollowingDbEntry next = page.poll();
+                if (next == null) return false;
+
+                action.accept(next);
+                return true;
+            }
+
+            private void fetchPage() {
+                try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
+                    "SELECT id, user_id, following_id FROM user_following "
+                        + "WHERE user_id >= ? AND (user_id > ? OR following_id > ?) "
+                        + "ORDER BY user_id, following_id LIMIT ?")) {
+                    ps.setLong(1, userId);
+                    ps.setLong(2, userId);
+                    ps.setLong(3, followingId);
+                    ps.setInt(4, pageSize);
+
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            UserFollowingDbEntry following = new UserFollowingDbEntry(rs.getLong("id"),
+                                rs.getLong("user_id"), rs.getLong("following_id"));
+                            page.add(following);
+                            userId = following.getUserId();
+                            followingId = following.getFollowingId();
+                        }
+                    }
+                } catch (SQLException e) {
+                    throw new UncheckedSqlException(e);
+                }
+
+                exhausted = page.size() < pageSize;
+            }
+        }, false);
+    }
+
+    @Override
+    public LongSet getAllFollowingUserIds() throws SQLException {
+        LongSet userIds = new LongOpenHashSet();
+        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
+            "SELECT DISTINCT user_id FROM user_following")) {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    userIds.add(rs.getLong("user_id"));
+                }
+            }
+        }
+        return userIds;
+    }
+
+    /**
+     * Writes the rows, replacing the ones of the same id or user, and materialises the data_preprocessed rows of the
+     * users again in the same transaction.
+     */
+    @Override
+    public void insertUsersPreProcessed(List<UserPreProcessedDbEntry> userPreProcessedDbEntries) throws SQLException {
+        inTransaction(connection -> {
+            usersPreProcessedWriter.write(connection, userPreProcessedDbEntries);
+            dataPreprocessedTable.refreshUsers(connection,
+                userPreProcessedDbEntries.stream().map(UserPreProcessedDbEntry::getUserId).distinct().toList());
+        });
+    }
+
+    /**
+     * Writes only the following counts of the rows and keeps gender and political affiliation. The rows are matched
+     * by user id, the id of the entries is ignored.
+     */
+    @Override
+    public void updateFollowingCounts(List<UserPreProcessedDbEntry> userPreProcessedDbEntries) throws SQLException {
+        inTransaction(connection -> writeFollowingCounts(connection, userPreProcessedDbEntries));
+    }
+
+    /**
+     * Sets the following counts of the users whose counts differ from the stored ones and materialises their
+     * data_preprocessed rows again. Users without a row get one, not classified yet, which is -1. Returns the number
+     * of users whose counts changed.
+     */
+    int writeFollowingCounts(Connection connection, List<UserPreProcessedDbEntry> userPreProcessedDbEntries)
+        throws SQLException {
+        return writeFollowingCounts(connection, userPreProcessedDbEntries, selectFollowingCounts(connection,
+            userPreProcessedDbEntries.stream().mapToLong(UserPreProcessedDbEntry::getUserId).distinct().toArray(),
+            true));
+    }
+
+    /**
+     * Like {@link #writeFollowingCounts(Connection, List)} with the stored counts already read.
+     */
+    int writeFollowingCounts(Connection connection, List<UserPreProcessedDbEntry> userPreProcessedDbEntries,
+                             Map<Long, UserPreProcessedDbEntry> stored) throws SQLException {
+        List<UserPreProcessedDbEntry> changed = new ArrayList<>();
+        for (UserPreProcessedDbEntry entry : userPreProcessedDbEntries) {
+            UserPreProcessedDbEntry current = stored.get(entry.getUserId());
+            if (current == null
+                || current.getDemocratFollowing() != entry.getDemocratFollowing()
+                || current.getRepublicanFollowing() != entry.getRepublicanFollowing()
+                || current.getFollowingBase() != entry.getFollowingBase()) {
+                changed.add(entry);
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            // a row another process inserted in the meantime is updated instead
+            try (PreparedStatement ps = connection.prepareStatement(
+                "INSERT INTO users_pre_processed (user_id, gender, political_affiliation, democrat_following, "
+                    + "republican_following, following_base) VALUES (?, -1, -1, ?, ?, ?) "
+                    + "ON DUPLICATE KEY UPDATE democrat_following = VALUES(democrat_following), "
+                    + "republican_following = VALUES(republican_following), following_base = VALUES(following_base)")) {
+                for (UserPreProcessedDbEntry entry : changed) {
+                    ps.setLong(1, entry.getUserId());
+                    ps.setInt(2, entry.getDemocratFollowing());
+                    ps.setInt(3, entry.getRepublicanFollowing());
+                    ps.setInt(4, entry.getFollowingBase());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            dataPreprocessedTable.refreshUsers(connection,
+                changed.stream().map(UserPreProcessedDbEntry::getUserId).distinct().toList());
+        }
+        return changed.size();
+    }
+
+    /**
+     * Reads the following counts of the users that have a row, by user id. Counts that are not set are 0.
+     *
+     * @param forUpdate whether the rows stay locked until the transaction ends, so that no following counts of the
+     *                  users are added in between
+     */
+    Map<Long, UserPreProcessedDbEntry> selectFollowingCounts(Connection connection, long[] userIds, boolean forUpdate)
+        throws SQLException {
+        Map<Long, UserPreProcessedDbEntry> counts = new HashMap<>();
+
+        for (int from = 0; from < userIds.length; from += SELECT_CHUNK_SIZE) {
+            int to = Math.min(userIds.length, from + SELECT_CHUNK_SIZE);
+
+            try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT id, user_id, democrat_following, republican_following, following_base "
+                    + "FROM users_pre_processed WHERE user_id IN ("
+                    + String.join(", ", Collections.nCopies(to - from, "?")) + ")"
+                    + (forUpdate ? " FOR UPDATE" : ""))) {
+                for (int i = from; i < to; i++) {
+                    ps.setLong(i - from + 1, userIds[i]);
+                }
+
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        counts.put(rs.getLong("user_id"), UserPreProcessedDbEntry.builder()
+                            .id(rs.getLong("id"))
+                            .userId(rs.getLong("user_id"))
+                            .democratFollowing(rs.getInt("democrat_following"))
+                            .republicanFollowing(rs.getInt("republican_following"))
+                            .followingBase(rs.getInt("following_base"))
+                            .build());
+                    }
+                }
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Counts the followings of every user again and corrects the stored counts that drifted. Returns the number of
+     * users whose counts changed.
+     */
+    public int reconcileFollowingCounts() throws SQLException {
+        return followingCountsMaintainer.reconcile();
+    }
+
+    @Override
+    public Optional<UserPreProcessedDbEntry> getUserPreProcessed(long userId) throws SQLException {
+        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
+            "SELECT * FROM users_pre_processed WHERE user_id = ?")) {
+            ps.setLong(1, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(new UserPreProcessedDbEntry(
+                        rs.getLong("id"),
+                        rs.getLong("user_id"),
+                        rs.getInt("gender"),
+                        rs.getInt("political_affiliation"),
+                        rs.getInt("democrat_following"),
+                        rs.getInt("republican_following"),
+                        rs.getInt("following_base")));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
     public void insertContextAnnotationDomain(ContextAnnotationDomainDbEntry cad) throws SQLException {
         insertContextAnnotationDomains(Collections.singletonList(cad));
     }
 
+    @Override
     public void insertContextAnnotationDomains(List<ContextAnnotationDomainDbEntry> cad) throws SQLException {
-        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
-            "INSERT INTO context_annotation_domains (id, name, description) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE id = id;")) {
-            for (ContextAnnotationDomainDbEntry ca : cad) {
-                ps.setLong(1, ca.getId());
-                ps.setString(2, ca.getName());
-                ps.setString(3, ca.getDescription());
-                ps.addBatch();
-            }
-            ps.executeBatch();
+        try (Connection connection = getNewConnection()) {
+            insertContextAnnotationDomains(connection, cad);
         }
+        cad.forEach(domain -> contextAnnotationCache.addDomain(domain.getId()));
+    }
+
+    void insertContextAnnotationDomains(Connection connection, List<ContextAnnotationDomainDbEntry> cad)
+        throws SQLException {
+        contextAnnotationDomainsWriter.write(connection, cad);
     }
 
+    @Override
     public boolean existsContextAnnotationDomain(long id) throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT id FROM context_annotation_domains WHERE id = ?")) {
@@ -429,6 +1073,7 @@ public class DatabaseManager {
         }
     }
 
+    @Override
     public Optional<ContextAnnotationDomainDbEntry> getContextAnnotationDomain(long id) throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT id, name, description FROM context_annotation_domains WHERE id = ?")) {
@@ -445,6 +1090,7 @@ public class DatabaseManager {
         return Optional.empty();
     }
 
+    @Override
     public List<ContextAnnotationDomainDbEntry> getAllContextAnnotationDomains() throws SQLException {
         List<ContextAnnotationDomainDbEntry> cad = new ArrayList<>();
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
@@ -461,23 +1107,25 @@ public class DatabaseManager {
         return cad;
     }
 
+    @Override
     public void insertContextAnnotationEntity(ContextAnnotationEntityDbEntry cae) throws SQLException {
         insertContextAnnotationEntities(Collections.singletonList(cae));
     }
 
+    @Override
     public void insertContextAnnotationEntities(List<ContextAnnotationEntityDbEntry> cae) throws SQLException {
-        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
-            "INSERT INTO context_annotation_entities (id, name, description) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE id = id;")) {
-            for (ContextAnnotationEntityDbEntry ca : cae) {
-                ps.setLong(1, ca.getId());
-                ps.setString(2, ca.getName());
-                ps.setString(3, ca.getDescription());
-                ps.addBatch();
-            }
-            ps.executeBatch();
+        try (Connection connection = getNewConnection()) {
+            insertContextAnnotationEntities(connection, cae);
         }
+        cae.forEach(entity -> contextAnnotationCache.addEntity(entity.getId()));
+    }
+
+    void insertContextAnnotationEntities(Connection connection, List<ContextAnnotationEntityDbEntry> cae)
+        throws SQLException {
+        contextAnnotationEntitiesWriter.write(connection, cae);
     }
 
+    @Override
     public boolean existsContextAnnotationEntity(long id) throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT id FROM context_annotation_entities WHERE id = ?")) {
@@ -488,6 +1136,7 @@ public class DatabaseManager {
         }
     }
 
+    @Override
     public Optional<ContextAnnotationEntityDbEntry> getContextAnnotationEntity(long id) throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT id, name, description FROM context_annotation_entities WHERE id = ?")) {
@@ -504,6 +1153,7 @@ public class DatabaseManager {
         return Optional.empty();
     }
 
+    @Override
     public List<ContextAnnotationEntityDbEntry> getAllContextAnnotationEntities() throws SQLException {
         List<ContextAnnotationEntityDbEntry> cae = new ArrayList<>();
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
@@ -520,22 +1170,23 @@ public class DatabaseManager {
         return cae;
     }
 
+    @Override
     public void insertContextAnnotation(ContextAnnotationDbEntry ca) throws SQLException {
         insertContextAnnotations(Collections.singletonList(ca));
     }
 
+    @Override
     public void insertContextAnnotations(List<ContextAnnotationDbEntry> cas) throws SQLException {
-        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
-            "INSERT INTO context_annotations (context_annotation_domain_id, context_annotation_entity_id) VALUES (?, ?) ON DUPLICATE KEY UPDATE id = id;")) {
-            for (ContextAnnotationDbEntry ca : cas) {
-                ps.setLong(1, ca.getContextAnnotationDomainId());
-                ps.setLong(2, ca.getContextAnnotationEntityId());
-                ps.addBatch();
-            }
-            ps.executeBatch();
+        try (Connection connection = getNewConnection()) {
+            insertContextAnnotations(connection, cas);
         }
     }
 
+    void insertContextAnnotations(Connection connection, List<ContextAnnotationDbEntry> cas) throws SQLException {
+        contextAnnotationsWriter.write(connection, cas);
+    }
+
+    @Override
     public boolean existsContextAnnotationByIds(ContextAnnotationDbEntry ca) throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT id FROM context_annotations WHERE context_annotation_domain_id = ? AND context_annotation_entity_id = ?")) {
@@ -547,93 +1198,89 @@ public class DatabaseManager {
         }
     }
 
+    @Override
     public Optional<ContextAnnotationDbEntry> getContextAnnotation(long contextAnnotationEntityId) throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT id, context_annotation_domain_id, context_annotation_entity_id FROM context_annotations WHERE context_annotation_entity_id = ?")) {
             ps.setLong(1, contextAnnotationEntityId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    return Optional.of(new ContextAnnotationDbEntry(
-                        rs.getLong("id"),
-                        rs.getLong("context_annotation_domain_id"),
-                        rs.getLong("context_annotation_entity_id"))
-                    );
+                    return Optional.of(mapContextAnnotation(rs));
                 }
             }
         }
         return Optional.empty();
     }
 
+    @Override
     public List<ContextAnnotationDbEntry> getAllContextAnnotations() throws SQLException {
         List<ContextAnnotationDbEntry> cas = new ArrayList<>();
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT id, context_annotation_domain_id, context_annotation_entity_id FROM context_annotations")) {
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    cas.add(new ContextAnnotationDbEntry(
-                        rs.getLong("id"),
-                        rs.getLong("context_annotation_domain_id"),
-                        rs.getLong("context_annotation_entity_id"))
-                    );
+                    cas.add(mapContextAnnotation(rs));
                 }
             }
         }
         return cas;
     }
 
+    @Override
+    public Stream<ContextAnnotationDbEntry> streamAllContextAnnotations() throws SQLException {
+        return streamTable("context_annotations",
+            "SELECT id, context_annotation_domain_id, context_annotation_entity_id FROM context_annotations",
+            DatabaseManager::mapContextAnnotation);
+    }
+
+    @Override
     public void insertTweet(TweetDbEntry tweetDbEntry) throws SQLException {
         insertTweets(Collections.singletonList(tweetDbEntry));
     }
 
+    @Override
     public void insertTweets(List<TweetDbEntry> tweetDbEntries) throws SQLException {
-        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
-            "INSERT INTO tweets (id, author_id, text, created_at, metrics_retweet_count, metrics_like_count, metrics_reply_count, metrics_quote_count, lang, geo, search_query) VALUES (?, ?, ?, ?, ?, ?, ?,?, ?,?,?) ON DUPLICATE KEY UPDATE id = id;")) {
-            for (TweetDbEntry tweetDbEntry : tweetDbEntries) {
-                ps.setLong(1, tweetDbEntry.getId());
-                ps.setLong(2, tweetDbEntry.getAuthorId());
-                ps.setString(3, tweetDbEntry.getText());
-                ps.setTimestamp(4, Timestamp.from(tweetDbEntry.getCreatedAt()));
-                ps.setInt(5, tweetDbEntry.getMetricsRetweetCount());
-                ps.setInt(6, tweetDbEntry.getMetricsLikeCount());
-                ps.setInt(7, tweetDbEntry.getMetricsReplyCount());
-                ps.setInt(8, tweetDbEntry.getMetricsQuoteCount());
-                ps.setString(9, tweetDbEntry.getLang());
-                ps.setString(10, tweetDbEntry.getGeo());
-                ps.setString(11, tweetDbEntry.getSearchQuery());
-                ps.addBatch();
-            }
-            ps.executeBatch();
-        }
+        inTransaction(connection -> {
+            insertTweets(connection, tweetDbEntries);
+            dataPreprocessedTable.refreshTweets(connection, tweetDbEntries.stream().map(TweetDbEntry::getId).toList());
+        });
+        invalidateTweets(tweetDbEntries.stream().map(TweetDbEntry::getId).toList());
     }
 
+    void insertTweets(Connection connection, List<TweetDbEntry> tweetDbEntries) throws SQLException {
+        tweetsWriter.write(connection, tweetDbEntries);
+    }
+
+    @Override
     public boolean existsTweet(long tweetId) throws SQLException {
-        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
-            "SELECT id FROM tweets WHERE id = ?")) {
-            ps.setLong(1, tweetId);
-            try (ResultSet rs = ps.executeQuery()) {
-                return rs.next();
-            }
-        }
+        return getTweet(tweetId).isPresent();
     }
 
+    /**
+     * Returns the ids of the given tweets that exist, with one query per 500 ids that are not cached.
+     */
+    @Override
+    public LongSet existsTweets(long... tweetIds) throws SQLException {
+        return existsCached(tweetCache, "SELECT id FROM tweets WHERE id IN ", tweetIds);
+    }
+
+    @Override
+    public LongSet existsTweets(Collection<Long> tweetIds) throws SQLException {
+        return existsTweets(tweetIds.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    @Override
     public Optional<TweetDbEntry> getTweet(long tweetId) throws SQLException {
+        return tweetCache.get(tweetId, () -> loadTweet(tweetId));
+    }
+
+    private Optional<TweetDbEntry> loadTweet(long tweetId) throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT id, author_id, text, search_query, created_at, metrics_retweet_count, metrics_like_count, metrics_reply_count, metrics_quote_count, lang, geo FROM tweets WHERE id = ?")) {
             ps.setLong(1, tweetId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    TweetDbEntry tweetDbEntry = new TweetDbEntry(
-                        rs.getLong("id"),
-                        rs.getLong("author_id"),
-                        rs.getString("text"),
-                        rs.getTimestamp("created_at").toInstant(),
-                        rs.getString("search_query"),
-                        rs.getInt("metrics_retweet_count"),
-                        rs.getInt("metrics_like_count"),
-                        rs.getInt("metrics_reply_count"),
-                        rs.getInt("metrics_quote_count"),
-                        rs.getString("lang"),
-                        rs.getString("geo"));
+                    TweetDbEntry tweetDbEntry = mapTweet(rs);
                     return Optional.of(tweetDbEntry);
                 }
             }
@@ -641,6 +1288,7 @@ public class DatabaseManager {
         return Optional.empty();
     }
 
+    @Override
     public List<TweetDbEntry> getAllTweetsByUserId(long userId) throws SQLException {
         List<TweetDbEntry> tweetDbEntries = new ArrayList<>();
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
@@ -648,18 +1296,7 @@ public class DatabaseManager {
             ps.setLong(1, userId);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    TweetDbEntry tweetDbEntry = new TweetDbEntry(
-                        rs.getLong("id"),
-                        rs.getLong("author_id"),
-                        rs.getString("text"),
-                        rs.getTimestamp("created_at").toInstant(),
-                        rs.getString("search_query"),
-                        rs.getInt("metrics_retweet_count"),
-                        rs.getInt("metrics_like_count"),
-                        rs.getInt("metrics_reply_count"),
-                        rs.getInt("metrics_quote_count"),
-                        rs.getString("lang"),
-                        rs.getString("geo"));
+                    TweetDbEntry tweetDbEntry = mapTweet(rs);
                     tweetDbEntries.add(tweetDbEntry);
                 }
             }
@@ -667,28 +1304,19 @@ public class DatabaseManager {
         return tweetDbEntries;
     }
 
+    @Override
     public List<TweetDbEntry> getAllTweetsByUser(UserDbEntry userDbEntry) throws SQLException {
         return getAllTweetsByUserId(userDbEntry.getId());
     }
 
+    @Override
     public List<TweetDbEntry> getAllTweets() throws SQLException {
         List<TweetDbEntry> tweetDbEntries = new ArrayList<>();
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT id, author_id, text, search_query, created_at, metrics_retweet_count, metrics_like_count, metrics_reply_count, metrics_quote_count, lang, geo FROM tweets")) {
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    TweetDbEntry tweetDbEntry = new TweetDbEntry(
-                        rs.getLong("id"),
-                        rs.getLong("author_id"),
-                        rs.getString("text"),
-                        rs.getTimestamp("created_at").toInstant(),
-                        rs.getString("search_query"),
-                        rs.getInt("metrics_retweet_count"),
-                        rs.getInt("metrics_like_count"),
-                        rs.getInt("metrics_reply_count"),
-                        rs.getInt("metrics_quote_count"),
-                        rs.getString("lang"),
-                        rs.getString("geo"));
+                    TweetDbEntry tweetDbEntry = mapTweet(rs);
                     tweetDbEntries.add(tweetDbEntry);
                 }
             }
@@ -696,49 +1324,101 @@ public class DatabaseManager {
         return tweetDbEntries;
     }
 
+    @Override
+    public Stream<TweetDbEntry> streamAllTweets() throws SQLException {
+        return streamTable("tweets", "SELECT id, author_id, text, search_query, created_at, metrics_retweet_count, "
+                + "metrics_like_count, metrics_reply_count, metrics_quote_count, lang, geo FROM tweets",
+            DatabaseManager::mapTweet);
+    }
+
+    /**
+     * Returns the largest tweet id crawled so far for the given search query.
+     */
+    @Override
+    public Optional<Long> getSearchHighWaterMark(String searchQuery) throws SQLException {
+        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
+            "SELECT max_tweet_id FROM search_high_water_marks WHERE search_query = ?")) {
+            ps.setString(1, searchQuery);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(rs.getLong("max_tweet_id"));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public Map<String, Long> getSearchHighWaterMarks() throws SQLException {
+        Map<String, Long> marks = new HashMap<>();
+        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
+            "SELECT search_query, max_tweet_id FROM search_high_water_marks")) {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    marks.put(rs.getString("search_query"), rs.getLong("max_tweet_id"));
+                }
+            }
+        }
+        return marks;
+    }
+
+    @Override
+    public void updateSearchHighWaterMark(String searchQuery, long maxTweetId) throws SQLException {
+        try (Connection connection = getNewConnection()) {
+            updateSearchHighWaterMark(connection, searchQuery, maxTweetId);
+        }
+    }
+
+    void updateSearchHighWaterMark(Connection connection, String searchQuery, long maxTweetId) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+            "INSERT INTO search_high_water_marks (search_query, max_tweet_id) VALUES (?, ?) "
+                + "ON DUPLICATE KEY UPDATE max_tweet_id = GREATEST(max_tweet_id, VALUES(max_tweet_id))")) {
+            ps.setString(1, searchQuery);
+            ps.setLong(2, maxTweetId);
+            ps.executeUpdate();
+        }
+    }
+
+    @Override
     public void insertTweetContextAnnotation(TweetContextAnnotationDbEntry tweetContextAnnotationDbEntry)
         throws SQLException {
         insertTweetContextAnnotations(Collections.singletonList(tweetContextAnnotationDbEntry));
     }
 
+    @Override
     public void insertTweetContextAnnotations(List<TweetContextAnnotationDbEntry> tweetContextAnnotationDbEntries)
         throws SQLException {
-        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
-            "INSERT INTO tweet_context_annotations (tweet_id, context_annotation_id) VALUES (?, ?) ON DUPLICATE KEY UPDATE id = id")) {
-            for (TweetContextAnnotationDbEntry tweetContextAnnotationDbEntry : tweetContextAnnotationDbEntries) {
-                ps.setLong(1, tweetContextAnnotationDbEntry.getTweetId());
-                ps.setLong(2, tweetContextAnnotationDbEntry.getContextAnnotationId());
-                ps.addBatch();
-            }
-            ps.executeBatch();
+        try (Connection connection = getNewConnection()) {
+            insertTweetContextAnnotations(connection, tweetContextAnnotationDbEntries);
         }
     }
 
+    void insertTweetContextAnnotations(Connection connection,
+                                       List<TweetContextAnnotationDbEntry> tweetContextAnnotationDbEntries)
+        throws SQLException {
+        tweetContextAnnotationsWriter.write(connection, tweetContextAnnotationDbEntries);
+    }
+
+    @Override
     public void insertTweetContextAnnotation(long tweetId, long contextAnnotationDomainId,
                                              long contextAnnotationEntityId) throws SQLException {
         insertTweetContextAnnotations(tweetId, Collections.singletonList(contextAnnotationDomainId),
             Collections.singletonList(contextAnnotationEntityId));
     }
 
+    /**
+     * Links the tweet to the context annotations given by their domain and entity ids. The context annotations have
+     * to exist already.
+     */
+    @Override
     public void insertTweetContextAnnotations(long tweetId, List<Long> contextAnnotationDomainIds,
                                               List<Long> contextAnnotationEntityIds) throws SQLException {
-        if (contextAnnotationDomainIds.size() != contextAnnotationEntityIds.size()) {
-            throw new IllegalArgumentException(
-                "contextAnnotationDomainIds and contextAnnotationEntityIds must have the same size");
-        }
-
-        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
-            "INSERT INTO tweet_context_annotations (tweet_id, context_annotation_id) VALUES (?, (SELECT id FROM context_annotations WHERE context_annotation_domain_id = ? AND context_annotation_entity_id = ?)) ON DUPLICATE KEY UPDATE id = id")) {
-            for (int i = 0; i < contextAnnotationDomainIds.size(); i++) {
-                ps.setLong(1, tweetId);
-                ps.setLong(2, contextAnnotationDomainIds.get(i));
-                ps.setLong(3, contextAnnotationEntityIds.get(i));
-                ps.addBatch();
-            }
-            ps.executeBatch();
-        }
+        newUnitOfWork()
+            .addTweetContextAnnotations(tweetId, contextAnnotationDomainIds, contextAnnotationEntityIds)
+            .commit();
     }
 
+    @Override
     public boolean existsTweetContextAnnotation(TweetContextAnnotationDbEntry tweetContextAnnotationDbEntry)
         throws SQLException {
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
@@ -752,6 +1432,7 @@ public class DatabaseManager {
         }
     }
 
+    @Override
     public Optional<TweetContextAnnotationDbEntry> getTweetContextAnnotation(TweetDbEntry tweetDbEntry,
                                                                              ContextAnnotationDbEntry contextAnnotationDbEntry)
         throws SQLException {
@@ -761,17 +1442,14 @@ public class DatabaseManager {
             ps.setLong(2, contextAnnotationDbEntry.getId());
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    return Optional.of(new TweetContextAnnotationDbEntry(
-                        rs.getLong("id"),
-                        rs.getLong("tweet_id"),
-                        rs.getLong("context_annotation_id"))
-                    );
+                    return Optional.of(mapTweetContextAnnotation(rs));
                 }
             }
         }
         return Optional.empty();
     }
 
+    @Override
     public List<TweetContextAnnotationDbEntry> getAllContextAnnotationsOfTweet(long tweetId) throws SQLException {
         List<TweetContextAnnotationDbEntry> tweetContextAnnotationDbEntries = new ArrayList<>();
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
@@ -779,39 +1457,110 @@ public class DatabaseManager {
             ps.setLong(1, tweetId);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    tweetContextAnnotationDbEntries.add(new TweetContextAnnotationDbEntry(
-                        rs.getLong("id"),
-                        rs.getLong("tweet_id"),
-                        rs.getLong("context_annotation_id"))
-                    );
+                    tweetContextAnnotationDbEntries.add(mapTweetContextAnnotation(rs));
                 }
             }
         }
         return tweetContextAnnotationDbEntries;
     }
 
+    @Override
     public List<TweetContextAnnotationDbEntry> getAllContextAnnotationsOfTweet(TweetDbEntry tweetDbEntry)
         throws SQLException {
         return getAllContextAnnotationsOfTweet(tweetDbEntry.getId());
     }
 
+    @Override
     public List<TweetContextAnnotationDbEntry> getAllTweetContextAnnotations() throws SQLException {
         List<TweetContextAnnotationDbEntry> tweetContextAnnotationDbEntries = new ArrayList<>();
         try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
             "SELECT id, tweet_id, context_annotation_id FROM tweet_context_annotations")) {
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    tweetContextAnnotationDbEntries.add(new TweetContextAnnotationDbEntry(
-                        rs.getLong("id"),
-                        rs.getLong("tweet_id"),
-                        rs.getLong("context_annotation_id"))
-                    );
+                    tweetContextAnnotationDbEntries.add(mapTweetContextAnnotation(rs));
                 }
             }
         }
         return tweetContextAnnotationDbEntries;
     }
 
+    @Override
+    public Stream<TweetContextAnnotationDbEntry> streamAllTweetContextAnnotations() throws SQLException {
+        return streamTable("tweet_context_annotations",
+            "SELECT id, tweet_id, context_annotation_id FROM tweet_context_annotations",
+            DatabaseManager::mapTweetContextAnnotation);
+    }
+
+    /**
+     * Streams the rows of the select ordered by id with keyset pagination. The select must not have a where clause.
+     * Rows inserted after the call with an id larger than the current maximum are not part of the stream.
+     */
+    private <T> Stream<T> streamTable(String table, String select, KeysetSpliterator.RowMapper<T> mapper)
+        throws SQLException {
+        long min;
+        long max;
+        try (Connection connection = getNewConnection(); PreparedStatement ps = connection.prepareStatement(
+            "SELECT MIN(id), MAX(id) FROM " + table)) {
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                min = rs.getLong(1);
+                if (rs.wasNull()) return Stream.empty();
+                max = rs.getLong(2);
+            }
+        }
+
+        int pageSize = CrawlerConfig.getInt("crawler.db.stream.page-size", 5000);
+        return StreamSupport.stream(new KeysetSpliterator<>(this::getNewConnection,
+            select + " WHERE id > ? AND id <= ? ORDER BY id LIMIT ?", "id", mapper, pageSize, min - 1, max), false);
+    }
+
+    private static UserDbEntry mapUser(ResultSet rs) throws SQLException {
+        return new UserDbEntry(
+            rs.getLong("id"),
+            toInstant(rs.getTimestamp("creation_date")),
+            rs.getString("username"),
+            rs.getString("name"),
+            rs.getBoolean("verified"),
+            rs.getString("profile_picture_url"),
+            rs.getString("location"),
+            rs.getString("url"),
+            rs.getString("biography")
+        );
+    }
+
+    private static TweetDbEntry mapTweet(ResultSet rs) throws SQLException {
+        return new TweetDbEntry(
+            rs.getLong("id"),
+            rs.getLong("author_id"),
+            rs.getString("text"),
+            toInstant(rs.getTimestamp("created_at")),
+            rs.getString("search_query"),
+            rs.getInt("metrics_retweet_count"),
+            rs.getInt("metrics_like_count"),
+            rs.getInt("metrics_reply_count"),
+            rs.getInt("metrics_quote_count"),
+            rs.getString("lang"),
+            rs.getString("geo"));
+    }
+
+    private static ContextAnnotationDbEntry mapContextAnnotation(ResultSet rs) throws SQLException {
+        return new ContextAnnotationDbEntry(
+            rs.getLong("id"),
+            rs.getLong("context_annotation_domain_id"),
+            rs.getLong("context_annotation_entity_id"));
+    }
+
+    private static TweetContextAnnotationDbEntry mapTweetContextAnnotation(ResultSet rs) throws SQLException {
+        return new TweetContextAnnotationDbEntry(
+            rs.getLong("id"),
+            rs.getLong("tweet_id"),
+            rs.getLong("context_annotation_id"));
+    }
+
+    private static Instant toInstant(Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.toInstant();
+    }
+
     // no references exists because they are excluded in the search query
 //    public void insertTweetReference(TweetReferenceDbEntry tweetReferenceDbEntry) throws SQLException {
 //        insertTweetReferences(Collections.singletonList(tweetReferenceDbEntry));
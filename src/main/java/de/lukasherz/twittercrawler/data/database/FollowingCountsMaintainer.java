@@ -0,0 +1,161 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import de.lukasherz.twittercrawler.CrawlerConfig;
+import de.lukasherz.twittercrawler.data.aggregation.FollowingCountAggregator;
+import de.lukasherz.twittercrawler.data.aggregation.SeedAccounts;
+import de.lukasherz.twittercrawler.data.entities.users.UserPreProcessedDbEntry;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Keeps democrat_following, republican_following and following_base of users_pre_processed up to date while
+ * followings are written. Only followings the user does not have yet are counted, so writing a page again changes
+ * nothing. The counts are added in the transaction that writes the followings to the row with the user id, like
+ * {@link FollowingCountAggregator} writes them.
+ * <p>
+ * Drift, e.g. of followings written concurrently by two transactions, is corrected by {@link #reconcile()}, which
+ * counts the followings of a few users at a time while it holds the locks of their rows, so no counts are added to
+ * them in between.
+ */
+@Flogger
+class FollowingCountsMaintainer {
+
+    private static final int RECONCILE_BATCH_SIZE = 500;
+
+    private final DatabaseManager dm;
+    private final boolean enabled;
+    private SeedAccounts seeds = SeedAccounts.NONE;
+
+    FollowingCountsMaintainer(DatabaseManager dm) {
+        this.dm = dm;
+
+        boolean enabled = CrawlerConfig.getBoolean("crawler.aggregation.incremental", true);
+        if (enabled) {
+            try {
+                seeds = SeedAccounts.fromConfig();
+            } catch (IOException e) {
+                log.atWarning().withCause(e).log("Could not load the seed accounts, following counts are not "
+                    + "maintained incrementally");
+                enabled = false;
+            }
+        }
+        this.enabled = enabled;
+    }
+
+    /**
+     * Adds the followings the user does not have yet to the counts of the user. Must run before the followings are
+     * written, on the connection of the transaction that writes them.
+     */
+    void addFollowings(Connection connection, long userId, List<Long> followingIds) throws SQLException {
+        if (!enabled || followingIds.isEmpty()) return;
+
+        LongSet added = new LongOpenHashSet(followingIds);
+        added.removeAll(dm.selectIdsIn(connection,
+            "SELECT following_id FROM user_following WHERE user_id = ? AND following_id IN ", added.toLongArray(),
+            userId));
+        if (added.isEmpty()) return;
+
+        int democrat = 0;
+        int republican = 0;
+        for (LongIterator iterator = added.iterator(); iterator.hasNext(); ) {
+            long followingId = iterator.nextLong();
+            if (seeds.isDemocrat(followingId)) democrat++;
+            if (seeds.isRepublican(followingId)) republican++;
+        }
+
+        // a user without a row gets one, not classified yet, which is -1
+        try (PreparedStatement ps = connection.prepareStatement(
+            "INSERT INTO users_pre_processed (user_id, gender, political_affiliation, democrat_following, "
+                + "republican_following, following_base) VALUES (?, -1, -1, ?, ?, ?) "
+                + "ON DUPLICATE KEY UPDATE "
+                + "democrat_following = COALESCE(democrat_following, 0) + VALUES(democrat_following), "
+                + "republican_following = COALESCE(republican_following, 0) + VALUES(republican_following), "
+                + "following_base = COALESCE(following_base, 0) + VALUES(following_base)")) {
+            ps.setLong(1, userId);
+            ps.setInt(2, democrat);
+            ps.setInt(3, republican);
+            ps.setInt(4, added.size());
+            ps.executeUpdate();
+        }
+
+        dm.getDataPreprocessedTable().refreshUsers(connection, Collections.singletonList(userId));
+    }
+
+    /**
+     * Counts the followings of every user again and writes the counts that differ from the stored ones. Returns the
+     * number of users whose counts changed.
+     */
+    int reconcile() throws SQLException {
+        if (!enabled) return 0;
+
+        long start = System.nanoTime();
+        long[] userIds = dm.getAllFollowingUserIds().toLongArray();
+        Arrays.sort(userIds);
+        int changed = 0;
+
+        for (int from = 0; from < userIds.length; from += RECONCILE_BATCH_SIZE) {
+            long[] batch = Arrays.copyOfRange(userIds, from, Math.min(userIds.length, from + RECONCILE_BATCH_SIZE));
+            int[] batchChanged = new int[1];
+
+            dm.inTransaction(connection -> {
+                // the rows are locked before the followings are counted, increments of the users wait for the
+                // transaction and count only followings written after it
+                Map<Long, UserPreProcessedDbEntry> stored = dm.selectFollowingCounts(connection, batch, true);
+                batchChanged[0] = dm.writeFollowingCounts(connection, count(connection, batch), stored);
+            });
+            changed += batchChanged[0];
+        }
+
+        log.atInfo().log("Reconciled the following counts of %d users in %d ms, %d had drifted", userIds.length,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), changed);
+        return changed;
+    }
+
+    private List<UserPreProcessedDbEntry> count(Connection connection, long[] userIds) throws SQLException {
+        Long2ObjectMap<int[]> counts = new Long2ObjectOpenHashMap<>();
+
+        try (PreparedStatement ps = connection.prepareStatement(
+            "SELECT user_id, following_id FROM user_following WHERE user_id IN ("
+                + String.join(", ", Collections.nCopies(userIds.length, "?")) + ")")) {
+            for (int i = 0; i < userIds.length; i++) {
+                ps.setLong(i + 1, userIds[i]);
+            }
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    long followingId = rs.getLong("following_id");
+                    int[] count = counts.computeIfAbsent(rs.getLong("user_id"), userId -> new int[3]);
+                    if (seeds.isDemocrat(followingId)) count[0]++;
+                    if (seeds.isRepublican(followingId)) count[1]++;
+                    count[2]++;
+                }
+            }
+        }
+
+        List<UserPreProcessedDbEntry> entries = new ArrayList<>(counts.size());
+        for (Long2ObjectMap.Entry<int[]> entry : counts.long2ObjectEntrySet()) {
+            entries.add(UserPreProcessedDbEntry.builder()
+                .userId(entry.getLongKey())
+                .democratFollowing(entry.getValue()[0])
+                .republicanFollowing(entry.getValue()[1])
+                .followingBase(entry.getValue()[2])
+                .build());
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,127 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Reads a table page by page in primary key order ({@code WHERE id > ? AND id <= ? ORDER BY id LIMIT ?}). Every
+ * page is read with its own connection that is closed before the rows are handed out, so only one page is held in
+ * memory and a stream that is not consumed to the end does not keep any database resources.
+ * <p>
+ * The key range can be split in halves, which lets a parallel stream read disjoint ranges concurrently.
+ */
+class KeysetSpliterator<T> implements Spliterator<T> {
+
+    private static final long MIN_SPLIT_RANGE = 1024;
+
+    private final ConnectionSupplier connectionSupplier;
+    private final String sql;
+    private final String keyColumn;
+    private final RowMapper<T> mapper;
+    private final int pageSize;
+    private final Deque<T> page = new ArrayDeque<>();
+    private long lower;
+    private long upper;
+    private boolean exhausted;
+
+    /**
+     * @param sql   the select with the parameters lower key (exclusive), upper key (inclusive) and limit
+     * @param lower the key all rows are larger than
+     * @param upper the largest key to read
+     */
+    KeysetSpliterator(ConnectionSupplier connectionSupplier, String sql, String keyColumn, RowMapper<T> mapper,
+                      int pageSize, long lower, long upper) {
+        this.connectionSupplier = connectionSupplier;
+        this.sql = sql;
+        this.keyColumn = keyColumn;
+        this.mapper = mapper;
+        this.pageSize = pageSize;
+        this.lower = lower;
+        this.upper = upper;
+        this.exhausted = lower >= upper;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (page.isEmpty() && !exhausted) {
+            fetchPage();
+        }
+
+        T next = page.poll();
+        if (next == null) return false;
+
+        action.accept(next);
+        return true;
+    }
+
+    private void fetchPage() {
+        int rows = 0;
+
+        try (Connection connection = connectionSupplier.get();
+             PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setLong(1, lower);
+            ps.setLong(2, upper);
+            ps.setInt(3, pageSize);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    page.add(mapper.map(rs));
+                    lower = rs.getLong(keyColumn);
+                    rows++;
+                }
+            }
+        } catch (SQLException e) {
+            throw new UncheckedSqlException(e);
+        }
+
+        if (rows < pageSize || lower >= upper) {
+            exhausted = true;
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        // the rows up to lower are read already, only the rest of the range is split
+        if (exhausted || upper - lower < MIN_SPLIT_RANGE) return null;
+
+        long mid = lower + (upper - lower) / 2;
+        KeysetSpliterator<T> prefix = new KeysetSpliterator<>(connectionSupplier, sql, keyColumn, mapper, pageSize,
+            lower, mid);
+        lower = mid;
+
+        // rows that are buffered already come before the prefix range, so they move to the prefix as well
+        prefix.page.addAll(page);
+        page.clear();
+        return prefix;
+    }
+
+    /**
+     * Estimates the rows by the size of the key range, which is exact for dense auto increment keys and lets a
+     * parallel stream stop splitting at a sensible partition size.
+     */
+    @Override
+    public long estimateSize() {
+        return exhausted ? page.size() : page.size() + (upper - lower);
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | DISTINCT;
+    }
+
+    @FunctionalInterface
+    interface ConnectionSupplier {
+        Connection get() throws SQLException;
+    }
+
+    @FunctionalInterface
+    interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
+    }
+}
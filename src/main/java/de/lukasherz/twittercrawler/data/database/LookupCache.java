@@ -0,0 +1,64 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import de.lukasherz.twittercrawler.CrawlerConfig;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Read-through cache of single rows by id. Evicts the least recently used rows above crawler.db.cache.max-size and
+ * every row after crawler.db.cache.expire-seconds, so rows written by other processes show up eventually.
+ * <p>
+ * Only rows that exist are cached, a row that is missing now may be written any moment. A row whose load overlapped
+ * with an invalidation is not cached either, it may have been read before the write that invalidated it.
+ */
+class LookupCache<V> {
+
+    private final Cache<Long, V> cache = CacheBuilder.newBuilder()
+        .maximumSize(CrawlerConfig.getLong("crawler.db.cache.max-size", 100000))
+        .expireAfterWrite(Duration.ofSeconds(CrawlerConfig.getLong("crawler.db.cache.expire-seconds", 600)))
+        .recordStats()
+        .build();
+    private long invalidations;
+
+    Optional<V> get(long id, Loader<V> loader) throws SQLException {
+        V cached = cache.getIfPresent(id);
+        if (cached != null) return Optional.of(cached);
+
+        long before;
+        synchronized (this) {
+            before = invalidations;
+        }
+
+        Optional<V> loaded = loader.load();
+        if (loaded.isPresent()) {
+            synchronized (this) {
+                if (invalidations == before) {
+                    cache.put(id, loaded.get());
+                }
+            }
+        }
+        return loaded;
+    }
+
+    boolean contains(long id) {
+        return cache.getIfPresent(id) != null;
+    }
+
+    synchronized void invalidateAll(Iterable<Long> ids) {
+        invalidations++;
+        cache.invalidateAll(ids);
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    @FunctionalInterface
+    interface Loader<V> {
+        Optional<V> load() throws SQLException;
+    }
+}
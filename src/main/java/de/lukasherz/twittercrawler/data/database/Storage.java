@@ -0,0 +1,160 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import de.lukasherz.twittercrawler.data.entities.tweets.TweetDbEntry;
+import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.ContextAnnotationDbEntry;
+import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.ContextAnnotationDomainDbEntry;
+import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.ContextAnnotationEntityDbEntry;
+import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.TweetContextAnnotationDbEntry;
+import de.lukasherz.twittercrawler.data.entities.users.UserDbEntry;
+import de.lukasherz.twittercrawler.data.entities.users.UserFollowingDbEntry;
+import de.lukasherz.twittercrawler.data.entities.users.UserPreProcessedDbEntry;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Where the crawled users, followings, tweets and context annotations are stored. {@link DatabaseManager} implements
+ * it for every {@link StorageBackend}, {@link StorageMerger} copies everything from one storage into another.
+ */
+public interface Storage extends AutoCloseable {
+
+    /**
+     * Returns a new unit of work that writes everything added to it in one transaction.
+     */
+    UnitOfWork newUnitOfWork();
+
+    void insertUser(UserDbEntry userDbEntry) throws SQLException;
+
+    void insertUsers(List<UserDbEntry> userDbEntries) throws SQLException;
+
+    boolean existsUser(long id) throws SQLException;
+
+    LongSet existsUsers(long... ids) throws SQLException;
+
+    LongSet existsUsers(Collection<Long> ids) throws SQLException;
+
+    Optional<UserDbEntry> getUser(long id) throws SQLException;
+
+    List<UserDbEntry> getAllUsers() throws SQLException;
+
+    Stream<UserDbEntry> streamAllUsers() throws SQLException;
+
+    void insertFollowing(long userId, long followingId) throws SQLException;
+
+    void insertFollowings(long userId, List<Long> followingIds) throws SQLException;
+
+    boolean isFollowing(long userId, long followingId) throws SQLException;
+
+    LongSet existsFollowings(long userId, long... followingIds) throws SQLException;
+
+    LongSet existsFollowings(long userId, Collection<Long> followingIds) throws SQLException;
+
+    Optional<UserFollowingDbEntry> getFollowing(long userId, long followingId) throws SQLException;
+
+    List<UserFollowingDbEntry> getAllFollowings(long userId) throws SQLException;
+
+    Stream<UserFollowingDbEntry> streamAllFollowings() throws SQLException;
+
+    Stream<UserFollowingDbEntry> streamFollowingsByUser() throws SQLException;
+
+    LongSet getAllFollowingUserIds() throws SQLException;
+
+    void insertUsersPreProcessed(List<UserPreProcessedDbEntry> userPreProcessedDbEntries) throws SQLException;
+
+    void updateFollowingCounts(List<UserPreProcessedDbEntry> userPreProcessedDbEntries) throws SQLException;
+
+    Optional<UserPreProcessedDbEntry> getUserPreProcessed(long userId) throws SQLException;
+
+    void insertContextAnnotationDomain(ContextAnnotationDomainDbEntry cad) throws SQLException;
+
+    void insertContextAnnotationDomains(List<ContextAnnotationDomainDbEntry> cad) throws SQLException;
+
+    boolean existsContextAnnotationDomain(long id) throws SQLException;
+
+    Optional<ContextAnnotationDomainDbEntry> getContextAnnotationDomain(long id) throws SQLException;
+
+    List<ContextAnnotationDomainDbEntry> getAllContextAnnotationDomains() throws SQLException;
+
+    void insertContextAnnotationEntity(ContextAnnotationEntityDbEntry cae) throws SQLException;
+
+    void insertContextAnnotationEntities(List<ContextAnnotationEntityDbEntry> cae) throws SQLException;
+
+    boolean existsContextAnnotationEntity(long id) throws SQLException;
+
+    Optional<ContextAnnotationEntityDbEntry> getContextAnnotationEntity(long id) throws SQLException;
+
+    List<ContextAnnotationEntityDbEntry> getAllContextAnnotationEntities() throws SQLException;
+
+    void insertContextAnnotation(ContextAnnotationDbEntry ca) throws SQLException;
+
+    void insertContextAnnotations(List<ContextAnnotationDbEntry> cas) throws SQLException;
+
+    boolean existsContextAnnotationByIds(ContextAnnotationDbEntry ca) throws SQLException;
+
+    Optional<ContextAnnotationDbEntry> getContextAnnotation(long contextAnnotationEntityId) throws SQLException;
+
+    List<ContextAnnotationDbEntry> getAllContextAnnotations() throws SQLException;
+
+    Stream<ContextAnnotationDbEntry> streamAllContextAnnotations() throws SQLException;
+
+    void insertTweet(TweetDbEntry tweetDbEntry) throws SQLException;
+
+    void insertTweets(List<TweetDbEntry> tweetDbEntries) throws SQLException;
+
+    boolean existsTweet(long tweetId) throws SQLException;
+
+    LongSet existsTweets(long... tweetIds) throws SQLException;
+
+    LongSet existsTweets(Collection<Long> tweetIds) throws SQLException;
+
+    Optional<TweetDbEntry> getTweet(long tweetId) throws SQLException;
+
+    List<TweetDbEntry> getAllTweetsByUserId(long userId) throws SQLException;
+
+    List<TweetDbEntry> getAllTweetsByUser(UserDbEntry userDbEntry) throws SQLException;
+
+    List<TweetDbEntry> getAllTweets() throws SQLException;
+
+    Stream<TweetDbEntry> streamAllTweets() throws SQLException;
+
+    Optional<Long> getSearchHighWaterMark(String searchQuery) throws SQLException;
+
+    Map<String, Long> getSearchHighWaterMarks() throws SQLException;
+
+    void updateSearchHighWaterMark(String searchQuery, long maxTweetId) throws SQLException;
+
+    void insertTweetContextAnnotation(TweetContextAnnotationDbEntry tweetContextAnnotationDbEntry)
+        throws SQLException;
+
+    void insertTweetContextAnnotations(List<TweetContextAnnotationDbEntry> tweetContextAnnotationDbEntries)
+        throws SQLException;
+
+    void insertTweetContextAnnotation(long tweetId, long contextAnnotationDomainId,
+                                      long contextAnnotationEntityId) throws SQLException;
+
+    void insertTweetContextAnnotations(long tweetId, List<Long> contextAnnotationDomainIds,
+                                       List<Long> contextAnnotationEntityIds) throws SQLException;
+
+    boolean existsTweetContextAnnotation(TweetContextAnnotationDbEntry tweetContextAnnotationDbEntry)
+        throws SQLException;
+
+    Optional<TweetContextAnnotationDbEntry> getTweetContextAnnotation(TweetDbEntry tweetDbEntry,
+                                                                      ContextAnnotationDbEntry contextAnnotationDbEntry)
+        throws SQLException;
+
+    List<TweetContextAnnotationDbEntry> getAllContextAnnotationsOfTweet(long tweetId) throws SQLException;
+
+    List<TweetContextAnnotationDbEntry> getAllContextAnnotationsOfTweet(TweetDbEntry tweetDbEntry)
+        throws SQLException;
+
+    List<TweetContextAnnotationDbEntry> getAllTweetContextAnnotations() throws SQLException;
+
+    Stream<TweetContextAnnotationDbEntry> streamAllTweetContextAnnotations() throws SQLException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,82 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import com.zaxxer.hikari.HikariConfig;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * The database engine a {@link DatabaseManager} stores its rows in, chosen with crawler.storage.backend. Both engines
+ * run the same SQL, H2 in its MySQL compatibility mode.
+ */
+public enum StorageBackend {
+    /**
+     * The shared MySQL server configured with the jdbc.* properties.
+     */
+    MYSQL {
+        @Override
+        HikariConfig createHikariConfig(Properties properties) {
+            HikariConfig config = new HikariConfig();
+            config.setJdbcUrl(properties.getProperty("jdbc.url"));
+            config.setUsername(properties.getProperty("jdbc.username"));
+            config.setPassword(properties.getProperty("jdbc.password"));
+            config.addDataSourceProperty("useSSL", properties.getProperty("jdbc.useSSL"));
+            config.addDataSourceProperty("serverTimezone", properties.getProperty("jdbc.serverTimezone"));
+            config.addDataSourceProperty("allowPublicKeyRetrieval",
+                properties.getProperty("jdbc.allowPublicKeyRetrieval"));
+            config.addDataSourceProperty("cachePrepStmts", "true");
+            config.addDataSourceProperty("prepStmtCacheSize", "250");
+            config.addDataSourceProperty("prepStmtCacheSqlLimit", "8192");
+            config.addDataSourceProperty("rewriteBatchedStatements", "true");
+            config.setDriverClassName("com.mysql.cj.jdbc.Driver");
+            config.setMaximumPoolSize(5);
+            return config;
+        }
+
+        @Override
+        long loadMaxAllowedPacket(Connection connection) throws SQLException {
+            try (PreparedStatement ps = connection.prepareStatement("SELECT @@max_allowed_packet");
+                 ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : DEFAULT_MAX_ALLOWED_PACKET;
+            }
+        }
+    },
+    /**
+     * An embedded database in the file crawler.storage.h2.file, for crawls without a database server that are
+     * merged into MySQL later.
+     */
+    H2 {
+        @Override
+        HikariConfig createHikariConfig(Properties properties) {
+            HikariConfig config = new HikariConfig();
+            config.setJdbcUrl("jdbc:h2:file:" + properties.getProperty("crawler.storage.h2.file", "./twittercrawler")
+                + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;CASE_INSENSITIVE_IDENTIFIERS=TRUE");
+            config.setUsername("sa");
+            config.setPassword("");
+            config.setDriverClassName("org.h2.Driver");
+            config.setMaximumPoolSize(5);
+            return config;
+        }
+
+        @Override
+        long loadMaxAllowedPacket(Connection connection) {
+            // there is no packet limit, this only keeps single statements reasonably small
+            return 16L * DEFAULT_MAX_ALLOWED_PACKET;
+        }
+    };
+
+    private static final long DEFAULT_MAX_ALLOWED_PACKET = 4L * 1024 * 1024;
+
+    abstract HikariConfig createHikariConfig(Properties properties);
+
+    /**
+     * Returns the largest statement the engine accepts in bytes.
+     */
+    abstract long loadMaxAllowedPacket(Connection connection) throws SQLException;
+
+    public static StorageBackend fromName(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,102 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.ContextAnnotationDbEntry;
+import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.TweetContextAnnotationDbEntry;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Copies everything of one storage into another, e.g. the H2 file of a crawl on an edge box into MySQL. Rows the
+ * target has already are kept, so merging the same source twice changes nothing. Context annotation ids are assigned
+ * by each database, so tweets are linked to their context annotations by the domain and entity ids.
+ * <p>
+ * users_pre_processed is derived from the crawled rows and not copied.
+ */
+@Flogger
+public class StorageMerger {
+
+    private static final int BATCH_SIZE = 5000;
+
+    private final Storage source;
+    private final Storage target;
+
+    public StorageMerger(Storage source, Storage target) {
+        this.source = source;
+        this.target = target;
+    }
+
+    public void merge() throws SQLException {
+        copy("users", source.streamAllUsers(), target::insertUsers);
+
+        target.insertContextAnnotationDomains(source.getAllContextAnnotationDomains());
+        target.insertContextAnnotationEntities(source.getAllContextAnnotationEntities());
+        List<ContextAnnotationDbEntry> contextAnnotations = source.getAllContextAnnotations();
+        target.insertContextAnnotations(contextAnnotations);
+        log.atInfo().log("Merged %d context annotations", contextAnnotations.size());
+
+        copy("tweets", source.streamAllTweets(), target::insertTweets);
+
+        Map<Long, ContextAnnotationDbEntry> contextAnnotationsById = contextAnnotations.stream()
+            .collect(Collectors.toMap(ContextAnnotationDbEntry::getId, Function.identity()));
+        copy("tweet context annotations", source.streamAllTweetContextAnnotations(), batch -> {
+            UnitOfWork uow = target.newUnitOfWork();
+            for (TweetContextAnnotationDbEntry tca : batch) {
+                ContextAnnotationDbEntry ca = contextAnnotationsById.get(tca.getContextAnnotationId());
+                if (ca == null) continue;
+
+                uow.addTweetContextAnnotations(tca.getTweetId(),
+                    Collections.singletonList(ca.getContextAnnotationDomainId()),
+                    Collections.singletonList(ca.getContextAnnotationEntityId()));
+            }
+            uow.commit();
+        });
+
+        copy("followings", source.streamAllFollowings(), batch -> {
+            UnitOfWork uow = target.newUnitOfWork();
+            batch.forEach(f -> uow.addFollowings(f.getUserId(), Collections.singletonList(f.getFollowingId())));
+            uow.commit();
+        });
+
+        for (Map.Entry<String, Long> entry : source.getSearchHighWaterMarks().entrySet()) {
+            target.updateSearchHighWaterMark(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static <T> void copy(String name, Stream<T> rows, BatchWriter<T> writer) throws SQLException {
+        long copied = 0;
+
+        try (rows) {
+            Iterator<T> iterator = rows.iterator();
+            List<T> batch = new ArrayList<>(BATCH_SIZE);
+
+            while (iterator.hasNext()) {
+                batch.add(iterator.next());
+                if (batch.size() == BATCH_SIZE || !iterator.hasNext()) {
+                    writer.write(batch);
+                    copied += batch.size();
+                    batch.clear();
+                    log.atInfo().atMostEvery(10, TimeUnit.SECONDS)
+                        .log("Merged %d %s so far", copied, name);
+                }
+            }
+        } catch (UncheckedSqlException e) {
+            throw e.getCause();
+        }
+
+        log.atInfo().log("Merged %d %s", copied, name);
+    }
+
+    @FunctionalInterface
+    private interface BatchWriter<T> {
+        void write(List<T> batch) throws SQLException;
+    }
+}
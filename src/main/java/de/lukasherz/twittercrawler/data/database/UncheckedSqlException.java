@@ -0,0 +1,19 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown by the streams of {@link DatabaseManager} when rows could not be read, as a stream cannot throw the
+ * checked {@link SQLException}.
+ */
+public class UncheckedSqlException extends RuntimeException {
+
+    public UncheckedSqlException(SQLException cause) {
+        super(cause);
+    }
+
+    @Override
+    public synchronized SQLException getCause() {
+        return (SQLException) super.getCause();
+    }
+}
@@ -0,0 +1,257 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import de.lukasherz.twittercrawler.data.database.ContextAnnotationCache.Key;
+import de.lukasherz.twittercrawler.data.entities.tweets.TweetDbEntry;
+import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.ContextAnnotationDbEntry;
+import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.ContextAnnotationDomainDbEntry;
+import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.ContextAnnotationEntityDbEntry;
+import de.lukasherz.twittercrawler.data.entities.tweets.contextannotation.TweetContextAnnotationDbEntry;
+import de.lukasherz.twittercrawler.data.entities.users.UserDbEntry;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Collects the rows of one api response and writes them with {@link #commit()} on a single connection in a single
+ * transaction, with one batch per table in foreign key order. Rows that appear more than once (e.g. the same
+ * context annotation on many tweets) are written once, and rows are written ordered by their key so concurrent
+ * units of work lock them in the same order.
+ * <p>
+ * Context annotation domains, entities and pairs that the {@link ContextAnnotationCache} knows are not written
+ * again, and tweets are linked to their context annotations by the cached ids.
+ */
+@Flogger
+public class UnitOfWork {
+
+    private static final Comparator<Key> KEY_ORDER =
+        Comparator.comparingLong(Key::domainId).thenComparingLong(Key::entityId);
+
+    private final DatabaseManager dm;
+    private final Map<Long, UserDbEntry> users = new LinkedHashMap<>();
+    private final Map<Long, TweetDbEntry> tweets = new LinkedHashMap<>();
+    private final Map<Long, ContextAnnotationDomainDbEntry> domains = new LinkedHashMap<>();
+    private final Map<Long, ContextAnnotationEntityDbEntry> entities = new LinkedHashMap<>();
+    private final Map<Key, ContextAnnotationDbEntry> contextAnnotations = new LinkedHashMap<>();
+    private final Set<TweetContextAnnotationLink> tweetContextAnnotations = new LinkedHashSet<>();
+    private final Map<Long, List<Long>> followings = new LinkedHashMap<>();
+    private final Map<String, Long> highWaterMarks = new LinkedHashMap<>();
+
+    UnitOfWork(DatabaseManager dm) {
+        this.dm = dm;
+    }
+
+    public UnitOfWork addUsers(List<UserDbEntry> users) {
+        users.forEach(user -> this.users.putIfAbsent(user.getId(), user));
+        return this;
+    }
+
+    public UnitOfWork addTweets(List<TweetDbEntry> tweets) {
+        tweets.forEach(tweet -> this.tweets.putIfAbsent(tweet.getId(), tweet));
+        return this;
+    }
+
+    public UnitOfWork addContextAnnotationDomains(List<ContextAnnotationDomainDbEntry> domains) {
+        domains.forEach(domain -> this.domains.putIfAbsent(domain.getId(), domain));
+        return this;
+    }
+
+    public UnitOfWork addContextAnnotationEntities(List<ContextAnnotationEntityDbEntry> entities) {
+        entities.forEach(entity -> this.entities.putIfAbsent(entity.getId(), entity));
+        return this;
+    }
+
+    public UnitOfWork addContextAnnotations(List<ContextAnnotationDbEntry> contextAnnotations) {
+        contextAnnotations.forEach(ca -> this.contextAnnotations.putIfAbsent(
+            new Key(ca.getContextAnnotationDomainId(), ca.getContextAnnotationEntityId()), ca));
+        return this;
+    }
+
+    /**
+     * Links the tweet to the context annotations given by their domain and entity ids.
+     */
+    public UnitOfWork addTweetContextAnnotations(long tweetId, List<Long> contextAnnotationDomainIds,
+                                                 List<Long> contextAnnotationEntityIds) {
+        if (contextAnnotationDomainIds.size() != contextAnnotationEntityIds.size()) {
+            throw new IllegalArgumentException(
+                "contextAnnotationDomainIds and contextAnnotationEntityIds must have the same size");
+        }
+
+        for (int i = 0; i < contextAnnotationDomainIds.size(); i++) {
+            tweetContextAnnotations.add(new TweetContextAnnotationLink(tweetId,
+                new Key(contextAnnotationDomainIds.get(i), contextAnnotationEntityIds.get(i))));
+        }
+        return this;
+    }
+
+    public UnitOfWork addFollowings(long userId, List<Long> followingIds) {
+        followings.computeIfAbsent(userId, id -> new ArrayList<>()).addAll(followingIds);
+        return this;
+    }
+
+    public UnitOfWork updateSearchHighWaterMark(String searchQuery, long maxTweetId) {
+        highWaterMarks.merge(searchQuery, maxTweetId, Math::max);
+        return this;
+    }
+
+    /**
+     * Adds everything of the other unit of work to this one.
+     */
+    public UnitOfWork addAll(UnitOfWork other) {
+        other.users.forEach(users::putIfAbsent);
+        other.tweets.forEach(tweets::putIfAbsent);
+        other.domains.forEach(domains::putIfAbsent);
+        other.entities.forEach(entities::putIfAbsent);
+        other.contextAnnotations.forEach(contextAnnotations::putIfAbsent);
+        tweetContextAnnotations.addAll(other.tweetContextAnnotations);
+        other.followings.forEach((userId, followingIds) -> addFollowings(userId, followingIds));
+        other.highWaterMarks.forEach(this::updateSearchHighWaterMark);
+        return this;
+    }
+
+    /**
+     * Returns the number of rows this unit of work writes at most.
+     */
+    public int getRowCount() {
+        return users.size() + tweets.size() + domains.size() + entities.size() + contextAnnotations.size()
+            + tweetContextAnnotations.size() + followings.values().stream().mapToInt(List::size).sum()
+            + highWaterMarks.size();
+    }
+
+    public boolean isEmpty() {
+        return users.isEmpty() && tweets.isEmpty() && domains.isEmpty() && entities.isEmpty()
+            && contextAnnotations.isEmpty() && tweetContextAnnotations.isEmpty() && followings.isEmpty()
+            && highWaterMarks.isEmpty();
+    }
+
+    /**
+     * Writes everything that was added. Nothing is written if one of the statements fails.
+     */
+    public void commit() throws SQLException {
+        if (isEmpty()) return;
+
+        ContextAnnotationCache cache = dm.getContextAnnotationCache();
+        Map<Key, Long> cached = lookUpContextAnnotationIds(cache);
+        List<ContextAnnotationDomainDbEntry> newDomains = sorted(domains).stream()
+            .filter(domain -> !cache.containsDomain(domain.getId()))
+            .toList();
+        List<ContextAnnotationEntityDbEntry> newEntities = sorted(entities).stream()
+            .filter(entity -> !cache.containsEntity(entity.getId()))
+            .toList();
+        List<ContextAnnotationDbEntry> newContextAnnotations = contextAnnotations.entrySet().stream()
+            .filter(entry -> !cached.containsKey(entry.getKey()))
+            .sorted(Map.Entry.comparingByKey(KEY_ORDER))
+            .map(Map.Entry::getValue)
+            .toList();
+
+        Map<Key, Long> resolved = new HashMap<>();
+
+        dm.inTransaction(connection -> {
+            resolved.clear();
+
+            if (!users.isEmpty()) {
+                dm.insertUsers(connection, sorted(users));
+            }
+            if (!newDomains.isEmpty()) {
+                dm.insertContextAnnotationDomains(connection, newDomains);
+            }
+            if (!newEntities.isEmpty()) {
+                dm.insertContextAnnotationEntities(connection, newEntities);
+            }
+            if (!newContextAnnotations.isEmpty()) {
+                dm.insertContextAnnotations(connection, newContextAnnotations);
+            }
+            if (!tweets.isEmpty()) {
+                dm.insertTweets(connection, sorted(tweets));
+                dm.getDataPreprocessedTable().refreshTweets(connection, tweets.keySet());
+            }
+            if (!tweetContextAnnotations.isEmpty()) {
+                dm.insertTweetContextAnnotations(connection, resolveTweetContextAnnotations(connection, cached,
+                    resolved));
+            }
+            for (Map.Entry<Long, List<Long>> entry : followings.entrySet()) {
+                dm.insertFollowings(connection, entry.getKey(), entry.getValue().stream().sorted().toList());
+            }
+            for (Map.Entry<String, Long> entry : highWaterMarks.entrySet()) {
+                dm.updateSearchHighWaterMark(connection, entry.getKey(), entry.getValue());
+            }
+        });
+
+        dm.invalidateUsers(users.keySet());
+        dm.invalidateTweets(tweets.keySet());
+
+        // only committed rows go into the cache
+        newDomains.forEach(domain -> cache.addDomain(domain.getId()));
+        newEntities.forEach(entity -> cache.addEntity(entity.getId()));
+        resolved.forEach((key, id) -> cache.addContextAnnotation(key.domainId(), key.entityId(), id));
+    }
+
+    /**
+     * Returns the cached ids of the context annotations of this unit of work. Every pair is looked up once, so the
+     * hit rate of the cache counts pairs, not how often they are used.
+     */
+    private Map<Key, Long> lookUpContextAnnotationIds(ContextAnnotationCache cache) {
+        Set<Key> keys = new LinkedHashSet<>(contextAnnotations.keySet());
+        tweetContextAnnotations.forEach(link -> keys.add(link.key()));
+
+        Map<Key, Long> cached = new HashMap<>();
+        for (Key key : keys) {
+            long id = cache.getContextAnnotationId(key.domainId(), key.entityId());
+            if (id >= 0) {
+                cached.put(key, id);
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Maps the links to the ids of their context annotations, from the cache or, for new ones, from the database.
+     */
+    private List<TweetContextAnnotationDbEntry> resolveTweetContextAnnotations(Connection connection,
+                                                                              Map<Key, Long> cached,
+                                                                              Map<Key, Long> resolved)
+        throws SQLException {
+        Set<Key> unknown = new LinkedHashSet<>();
+        for (TweetContextAnnotationLink link : tweetContextAnnotations) {
+            if (!cached.containsKey(link.key())) {
+                unknown.add(link.key());
+            }
+        }
+        if (!unknown.isEmpty()) {
+            resolved.putAll(dm.selectContextAnnotationIds(connection, unknown));
+        }
+
+        List<TweetContextAnnotationDbEntry> entries = new ArrayList<>(tweetContextAnnotations.size());
+        for (TweetContextAnnotationLink link : tweetContextAnnotations) {
+            Long id = resolved.getOrDefault(link.key(), cached.get(link.key()));
+
+            if (id == null) {
+                log.atWarning().log("Context annotation %s of tweet %d does not exist", link.key(), link.tweetId());
+                continue;
+            }
+            entries.add(TweetContextAnnotationDbEntry.builder().tweetId(link.tweetId()).contextAnnotationId(id)
+                .build());
+        }
+
+        entries.sort(Comparator.comparingLong(TweetContextAnnotationDbEntry::getTweetId)
+            .thenComparingLong(TweetContextAnnotationDbEntry::getContextAnnotationId));
+        return entries;
+    }
+
+    private static <T> List<T> sorted(Map<Long, T> rows) {
+        return rows.entrySet().stream()
+            .sorted(Map.Entry.comparingByKey())
+            .map(Map.Entry::getValue)
+            .toList();
+    }
+
+    private record TweetContextAnnotationLink(long tweetId, Key key) {
+    }
+}
@@ -0,0 +1,300 @@
+package de.lukasherz.twittercrawler.data.database;
+
+import de.lukasherz.twittercrawler.CrawlerConfig;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Collects the units of work of many requests and writes them together in one transaction (group commit), once
+ * crawler.db.write-behind.flush-rows rows are pending or the oldest one waited crawler.db.write-behind.flush-ms.
+ * At most crawler.db.write-behind.max-rows rows are buffered, {@link #submit(UnitOfWork, Runnable)} blocks
+ * while the buffer is full.
+ * <p>
+ * In {@link Mode#ASYNC} mode submit returns right away and the callback runs once the rows are committed, so work
+ * that must not happen before (e.g. marking the request as done in the frontier journal) waits for the flush. In
+ * {@link Mode#SYNC} mode submit also waits for the commit.
+ * <p>
+ * A unit of work that cannot be written is buffered again and written with the next flushes, up to
+ * crawler.db.write-behind.max-attempts times in total. After that its rows are dropped and its callback never runs, so
+ * its request stays pending in the frontier journal and is crawled again after a restart.
+ */
+@Flogger
+public class WriteBehindBuffer {
+
+    private final DatabaseManager dm;
+    private final Mode mode;
+    private final int flushRows;
+    private final int maxRows;
+    private final Duration flushInterval;
+    private final int maxAttempts;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushNeeded = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private List<Pending> pending = new ArrayList<>();
+    private int pendingRows;
+    private long oldestPending;
+    private long flushedGeneration;
+    private long generation;
+    private Thread flusher;
+    private boolean closing;
+
+    WriteBehindBuffer(DatabaseManager dm) {
+        this(dm,
+            Mode.valueOf(CrawlerConfig.getString("crawler.db.write-behind.mode", "ASYNC").toUpperCase()),
+            CrawlerConfig.getInt("crawler.db.write-behind.flush-rows", 5000),
+            CrawlerConfig.getInt("crawler.db.write-behind.max-rows", 50000),
+            Duration.ofMillis(CrawlerConfig.getLong("crawler.db.write-behind.flush-ms", 1000)),
+            CrawlerConfig.getInt("crawler.db.write-behind.max-attempts", 3));
+    }
+
+    WriteBehindBuffer(DatabaseManager dm, Mode mode, int flushRows, int maxRows, Duration flushInterval,
+                      int maxAttempts) {
+        this.dm = dm;
+        this.mode = mode;
+        this.flushRows = Math.max(1, flushRows);
+        this.maxRows = Math.max(this.flushRows, maxRows);
+        this.flushInterval = flushInterval;
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Buffers the unit of work.
+     *
+     * @param onCommitted called on the flushing thread once the rows are committed, not called if they could not
+     *                    be written within crawler.db.write-behind.max-attempts flushes
+     */
+    public void submit(UnitOfWork uow, Runnable onCommitted) throws InterruptedException {
+        int rows = uow.getRowCount();
+        long submittedGeneration;
+
+        lock.lockInterruptibly();
+        try {
+            // a unit of work larger than the whole buffer is let through once the buffer is empty
+            while (pendingRows > 0 && pendingRows + rows > maxRows) {
+                flushNeeded.signal();
+                flushed.await();
+            }
+
+            ensureFlusher();
+            if (pending.isEmpty()) {
+                oldestPending = System.nanoTime();
+            }
+            pending.add(new Pending(uow, onCommitted, 1));
+            pendingRows += rows;
+            submittedGeneration = generation;
+
+            if (pendingRows >= flushRows || mode == Mode.SYNC) {
+                flushNeeded.signal();
+            }
+
+            if (mode == Mode.SYNC) {
+                while (flushedGeneration <= submittedGeneration) {
+                    flushed.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes everything that is buffered and waits until it is committed.
+     */
+    public void flush() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (pending.isEmpty()) return;
+
+            long target = generation;
+            flushNeeded.signal();
+            while (flushedGeneration <= target) {
+                flushed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes everything that is buffered and stops the flushing thread. The buffer starts it again on the next
+     * submit.
+     */
+    public void close() {
+        Thread flusher;
+
+        lock.lock();
+        try {
+            if (this.flusher == null) return;
+
+            closing = true;
+            flusher = this.flusher;
+            flushNeeded.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPendingRows() {
+        lock.lock();
+        try {
+            return pendingRows;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    private void ensureFlusher() {
+        if (flusher != null) return;
+
+        closing = false;
+        flusher = new Thread(this::run, "write-behind");
+        flusher.start();
+    }
+
+    private void run() {
+        while (true) {
+            List<Pending> batch;
+            int rows;
+
+            lock.lock();
+            try {
+                while (!closing && !isFlushDue()) {
+                    long waitNanos = pending.isEmpty()
+                        ? TimeUnit.SECONDS.toNanos(1)
+                        : flushInterval.toNanos() - (System.nanoTime() - oldestPending);
+                    try {
+                        flushNeeded.awaitNanos(Math.max(1, waitNanos));
+                    } catch (InterruptedException e) {
+                        closing = true;
+                    }
+                }
+
+                if (pending.isEmpty() && closing) {
+                    flusher = null;
+                    closing = false;
+                    flushed.signalAll();
+                    return;
+                }
+
+                batch = pending;
+                rows = pendingRows;
+                pending = new ArrayList<>();
+                pendingRows = 0;
+                generation++;
+            } finally {
+                lock.unlock();
+            }
+
+            write(batch, rows);
+
+            lock.lock();
+            try {
+                flushedGeneration++;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean isFlushDue() {
+        if (pending.isEmpty()) return false;
+
+        return mode == Mode.SYNC
+            || pendingRows >= flushRows
+            || lock.hasWaiters(flushed)
+            || System.nanoTime() - oldestPending >= flushInterval.toNanos();
+    }
+
+    private void write(List<Pending> batch, int rows) {
+        long start = System.nanoTime();
+        UnitOfWork group = dm.newUnitOfWork();
+        batch.forEach(p -> group.addAll(p.uow()));
+
+        try {
+            group.commit();
+            log.atFine().log("Group commit of %d units of work with %d rows took %d ms", batch.size(), rows,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            batch.forEach(this::runCallback);
+        } catch (SQLException | RuntimeException e) {
+            log.atWarning().withCause(e).log("Group commit of %d units of work failed, writing them one by one",
+                batch.size());
+
+            // one bad unit of work must not take the others with it
+            List<Pending> failed = new ArrayList<>();
+            for (Pending p : batch) {
+                try {
+                    p.uow().commit();
+                    runCallback(p);
+                } catch (SQLException | RuntimeException ex) {
+                    if (p.attempts() < maxAttempts) {
+                        log.atWarning().withCause(ex).log("Could not write unit of work (attempt %d/%d), "
+                            + "retrying with the next flush", p.attempts(), maxAttempts);
+                        failed.add(new Pending(p.uow(), p.onCommitted(), p.attempts() + 1));
+                    } else {
+                        log.atSevere().withCause(ex).log("Could not write unit of work after %d attempts, dropping "
+                            + "its %d rows, its request is only crawled again after a restart", maxAttempts,
+                            p.uow().getRowCount());
+                    }
+                }
+            }
+
+            if (!failed.isEmpty()) {
+                retry(failed);
+            }
+        }
+    }
+
+    private void retry(List<Pending> failed) {
+        lock.lock();
+        try {
+            if (pending.isEmpty()) {
+                oldestPending = System.nanoTime();
+            }
+            pending.addAll(0, failed);
+            for (Pending p : failed) {
+                pendingRows += p.uow().getRowCount();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runCallback(Pending p) {
+        try {
+            p.onCommitted().run();
+        } catch (RuntimeException e) {
+            log.atSevere().withCause(e).log("Callback after commit failed");
+        }
+    }
+
+    public enum Mode {
+        /**
+         * Submit waits until the rows are committed.
+         */
+        SYNC,
+        /**
+         * Submit returns right away, the rows are committed with the next flush.
+         */
+        ASYNC
+    }
+
+    private record Pending(UnitOfWork uow, Runnable onCommitted, int attempts) {
+    }
+}
@@ -0,0 +1,18 @@
+package de.lukasherz.twittercrawler.data.entities.users;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+
+@Builder
+@Data
+@AllArgsConstructor
+public class UserPreProcessedDbEntry {
+    private long id;
+    private long userId;
+    private int gender;
+    private int politicalAffiliation;
+    private int democratFollowing;
+    private int republicanFollowing;
+    private int followingBase;
+}
@@ -0,0 +1,229 @@
+package de.lukasherz.twittercrawler.data.graph;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+import java.util.function.LongConsumer;
+
+/**
+ * A read-only snapshot of the follow graph in compressed sparse row form, written by {@link FollowGraphWriter} and
+ * memory-mapped, so traversals run without the database and without objects per edge.
+ * <p>
+ * The file starts with a header of magic, version, user count, padding, edge count and neighbour byte count. It is
+ * followed by the sorted ids of the users that follow someone, the byte offset of every neighbour list and the edge
+ * offset of every neighbour list, each with one more entry than there are users. The neighbour lists are the sorted
+ * ids of the followed users, each encoded as a varint of the difference to the previous one.
+ * <p>
+ * All reads are absolute, so a graph can be used by many threads at once. The mapping stays valid until it is garbage
+ * collected, {@link #close()} only closes the file.
+ */
+public class FollowGraph implements AutoCloseable {
+
+    static final int MAGIC = 0x46475331;
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final FileChannel channel;
+    private final int userCount;
+    private final long edgeCount;
+    private final LongBuffer ids;
+    private final LongBuffer byteOffsets;
+    private final IntBuffer edgeOffsets;
+    private final MappedByteBuffer[] neighbours;
+
+    private FollowGraph(FileChannel channel) throws IOException {
+        this.channel = channel;
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not a follow graph snapshot of version " + VERSION);
+        }
+        userCount = header.getInt(8);
+        edgeCount = header.getLong(16);
+        long neighbourBytes = header.getLong(24);
+
+        long position = HEADER_SIZE;
+        ids = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * userCount).asLongBuffer();
+        position += 8L * userCount;
+        byteOffsets = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * (userCount + 1)).asLongBuffer();
+        position += 8L * (userCount + 1);
+        edgeOffsets = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * (userCount + 1)).asIntBuffer();
+        position += 4L * (userCount + 1);
+
+        // a single mapping is limited to 2 GiB, so the neighbour lists are mapped in segments of 1 GiB
+        neighbours = new MappedByteBuffer[(int) ((neighbourBytes + SEGMENT_MASK) >>> SEGMENT_BITS)];
+        for (int i = 0; i < neighbours.length; i++) {
+            long offset = (long) i << SEGMENT_BITS;
+            neighbours[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + offset,
+                Math.min(1L << SEGMENT_BITS, neighbourBytes - offset));
+        }
+    }
+
+    public static FollowGraph open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new FollowGraph(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of users that follow at least one user.
+     */
+    public int userCount() {
+        return userCount;
+    }
+
+    public long edgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * Returns the user at the index, users are sorted by id.
+     */
+    public long userId(int index) {
+        return ids.get(index);
+    }
+
+    /**
+     * Returns the index of the user or -1 if the user follows no one.
+     */
+    public int indexOf(long userId) {
+        int low = 0;
+        int high = userCount - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long id = ids.get(mid);
+            if (id < userId) {
+                low = mid + 1;
+            } else if (id > userId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of users the user follows.
+     */
+    public int degree(long userId) {
+        int index = indexOf(userId);
+        return index < 0 ? 0 : degreeAt(index);
+    }
+
+    public int degreeAt(int index) {
+        return edgeOffsets.get(index + 1) - edgeOffsets.get(index);
+    }
+
+    /**
+     * Iterates over the users the user follows in ascending order.
+     */
+    public LongIterator neighbours(long userId) {
+        int index = indexOf(userId);
+        return index < 0 ? new NeighbourIterator(0, 0) : neighboursAt(index);
+    }
+
+    public LongIterator neighboursAt(int index) {
+        return new NeighbourIterator(byteOffsets.get(index), degreeAt(index));
+    }
+
+    public boolean follows(long userId, long followingId) {
+        LongIterator iterator = neighbours(userId);
+        while (iterator.hasNext()) {
+            long next = iterator.nextLong();
+            if (next >= followingId) return next == followingId;
+        }
+        return false;
+    }
+
+    /**
+     * Passes the users both users follow to the action in ascending order and returns their number.
+     */
+    public int forEachCommonNeighbour(long userId, long otherUserId, LongConsumer action) {
+        LongIterator a = neighbours(userId);
+        LongIterator b = neighbours(otherUserId);
+        if (!a.hasNext() || !b.hasNext()) return 0;
+
+        int common = 0;
+        long x = a.nextLong();
+        long y = b.nextLong();
+        while (true) {
+            if (x < y) {
+                if (!a.hasNext()) break;
+                x = a.nextLong();
+            } else if (x > y) {
+                if (!b.hasNext()) break;
+                y = b.nextLong();
+            } else {
+                action.accept(x);
+                common++;
+                if (!a.hasNext() || !b.hasNext()) break;
+                x = a.nextLong();
+                y = b.nextLong();
+            }
+        }
+        return common;
+    }
+
+    public int intersectionSize(long userId, long otherUserId) {
+        return forEachCommonNeighbour(userId, otherUserId, id -> {
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private byte neighbourByte(long position) {
+        return neighbours[(int) (position >>> SEGMENT_BITS)].get((int) (position & SEGMENT_MASK));
+    }
+
+    private final class NeighbourIterator implements LongIterator {
+
+        private long position;
+        private int remaining;
+        private long previous;
+
+        private NeighbourIterator(long position, int remaining) {
+            this.position = position;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public long nextLong() {
+            if (remaining == 0) throw new NoSuchElementException();
+            remaining--;
+
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = neighbourByte(position++);
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            previous += delta;
+            return previous;
+        }
+    }
+}
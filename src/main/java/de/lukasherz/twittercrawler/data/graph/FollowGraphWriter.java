@@ -0,0 +1,125 @@
+package de.lukasherz.twittercrawler.data.graph;
+
+import de.lukasherz.twittercrawler.data.database.Storage;
+import de.lukasherz.twittercrawler.data.database.UncheckedSqlException;
+import de.lukasherz.twittercrawler.data.entities.users.UserFollowingDbEntry;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import lombok.extern.flogger.Flogger;
+
+/**
+ * Writes user_following as a {@link FollowGraph} file. The followings are read once ordered by user, the neighbour
+ * lists are encoded into a temporary file while the ids and offsets are collected, and the file is assembled and moved
+ * into place at the end, so a reader never sees a partly written snapshot.
+ */
+@Flogger
+public class FollowGraphWriter {
+
+    private final Storage storage;
+
+    public FollowGraphWriter(Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Writes the snapshot and returns the number of edges.
+     */
+    public long write(Path file) throws SQLException, IOException {
+        long start = System.nanoTime();
+        Path neighboursFile = file.resolveSibling(file.getFileName() + ".neighbours");
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+
+        LongArrayList ids = new LongArrayList();
+        LongArrayList byteOffsets = new LongArrayList();
+        IntArrayList edgeOffsets = new IntArrayList();
+        long edges = 0;
+        long bytes = 0;
+
+        // the temporary files are left behind neither by a failed nor by a successful write
+        try {
+            try (Stream<UserFollowingDbEntry> followings = storage.streamFollowingsByUser();
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(neighboursFile))) {
+                Iterator<UserFollowingDbEntry> iterator = followings.iterator();
+                long previous = 0;
+
+                while (iterator.hasNext()) {
+                    UserFollowingDbEntry following = iterator.next();
+
+                    if (ids.isEmpty() || ids.getLong(ids.size() - 1) != following.getUserId()) {
+                        ids.add(following.getUserId());
+                        byteOffsets.add(bytes);
+                        edgeOffsets.add((int) edges);
+                        previous = 0;
+                    }
+
+                    // followed ids of a user are strictly increasing, so every delta is positive
+                    bytes += writeVarLong(out, following.getFollowingId() - previous);
+                    previous = following.getFollowingId();
+
+                    if (++edges > Integer.MAX_VALUE) {
+                        throw new IllegalStateException("The follow graph has more edges than a snapshot can hold");
+                    }
+                    log.atInfo().atMostEvery(10, TimeUnit.SECONDS).log("Read %d followings so far", edges);
+                }
+            } catch (UncheckedSqlException e) {
+                throw e.getCause();
+            }
+            byteOffsets.add(bytes);
+            edgeOffsets.add((int) edges);
+
+            try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+                out.writeInt(FollowGraph.MAGIC);
+                out.writeInt(FollowGraph.VERSION);
+                out.writeInt(ids.size());
+                out.writeInt(0);
+                out.writeLong(edges);
+                out.writeLong(bytes);
+
+                for (int i = 0; i < ids.size(); i++) {
+                    out.writeLong(ids.getLong(i));
+                }
+                for (int i = 0; i < byteOffsets.size(); i++) {
+                    out.writeLong(byteOffsets.getLong(i));
+                }
+                for (int i = 0; i < edgeOffsets.size(); i++) {
+                    out.writeInt(edgeOffsets.getInt(i));
+                }
+                Files.copy(neighboursFile, out);
+            }
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(neighboursFile);
+            Files.deleteIfExists(tmpFile);
+        }
+
+        log.atInfo().log("Wrote %d users with %d followings (%d bytes of neighbours) to %s in %d s", ids.size(),
+            edges, bytes, file, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+        return edges;
+    }
+
+    /**
+     * Writes the value in groups of 7 bits, least significant first, and returns the number of bytes.
+     */
+    private static int writeVarLong(OutputStream out, long value) throws IOException {
+        int bytes = 1;
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+            bytes++;
+        }
+        out.write((int) value);
+        return bytes;
+    }
+}
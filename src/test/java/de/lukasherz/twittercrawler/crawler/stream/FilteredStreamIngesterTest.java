@@ -0,0 +1,143 @@
+package de.lukasherz.twittercrawler.crawler.stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.twitter.clientlib.model.Tweet;
+import com.twitter.clientlib.model.TweetSearchResponse;
+import com.twitter.clientlib.model.User;
+import de.lukasherz.twittercrawler.crawler.PersistencePipeline;
+import de.lukasherz.twittercrawler.crawler.Request;
+import de.lukasherz.twittercrawler.crawler.RequestPriorityQueue;
+import de.lukasherz.twittercrawler.crawler.requests.HashtagSearchRequest;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FilteredStreamIngesterTest {
+
+    private static final String HASHTAG = "#foo";
+
+    private final AtomicInteger streamConnections = new AtomicInteger();
+    private HttpServer server;
+    private CapturingPipeline pipeline;
+    private FilteredStreamIngester ingester;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/2/tweets/search/stream/rules", exchange ->
+            respond(exchange, "GET".equals(exchange.getRequestMethod()) ? 200 : 201, "{\"data\": []}"));
+        server.createContext("/2/tweets/search/stream", this::stream);
+        server.start();
+
+        pipeline = new CapturingPipeline();
+        ingester = new FilteredStreamIngester("http://localhost:" + server.getAddress().getPort() + "/", "token",
+            List.of(HASHTAG), new RequestPriorityQueue<>(Set.of()), pipeline, 2, Duration.ofMinutes(1), false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ingester.stop();
+        server.stop(0);
+    }
+
+    @Test
+    void reconnectsAndBatchesTheTweetsBetweenMalformedLines() throws InterruptedException {
+        ingester.start();
+
+        TweetSearchResponse batch = pipeline.results.poll(10, TimeUnit.SECONDS);
+        assertNotNull(batch, "no batch was handed to the pipeline");
+        assertTrue(streamConnections.get() >= 2, "the stream was not reconnected after the 503");
+
+        assertEquals(List.of("1", "2"), batch.getData().stream().map(Tweet::getId).toList());
+        assertEquals(List.of("10", "20"), batch.getIncludes().getUsers().stream().map(User::getId).toList());
+        assertEquals(HASHTAG, pipeline.hashtags.poll());
+    }
+
+    @Test
+    void backsOffExponentiallyUpToTheMaximum() {
+        assertEquals(Duration.ofSeconds(1), FilteredStreamIngester.nextBackoff(Duration.ZERO, false));
+        assertEquals(Duration.ofSeconds(2), FilteredStreamIngester.nextBackoff(Duration.ofSeconds(1), false));
+        assertEquals(Duration.ofMinutes(5), FilteredStreamIngester.nextBackoff(Duration.ofMinutes(4), false));
+    }
+
+    @Test
+    void backsOffAtLeastAMinuteWhenRateLimited() {
+        assertEquals(Duration.ofMinutes(1), FilteredStreamIngester.nextBackoff(Duration.ZERO, true));
+        assertEquals(Duration.ofMinutes(1), FilteredStreamIngester.nextBackoff(Duration.ofSeconds(2), true));
+        assertEquals(Duration.ofMinutes(2), FilteredStreamIngester.nextBackoff(Duration.ofMinutes(1), true));
+    }
+
+    /**
+     * Fails the first connection, streams two tweets around malformed lines on the second and closes every later
+     * one right away.
+     */
+    private void stream(HttpExchange exchange) throws IOException {
+        int connection = streamConnections.incrementAndGet();
+        if (connection == 1) {
+            respond(exchange, 503, "{\"title\": \"Service Unavailable\"}");
+            return;
+        }
+        if (connection > 2) {
+            respond(exchange, 200, "");
+            return;
+        }
+
+        respond(exchange, 200, String.join("\r\n",
+            message("1", "10"),
+            "",
+            "{not json",
+            "{\"errors\": [{\"title\": \"operational-disconnect\"}]}",
+            "{\"data\": {\"id\": \"3\"}, \"matching_rules\": []",
+            message("2", "20"),
+            ""));
+    }
+
+    private static String message(String tweetId, String authorId) {
+        return "{\"data\": {\"id\": \"" + tweetId + "\", \"text\": \"" + HASHTAG + " tweet " + tweetId + "\", "
+            + "\"author_id\": \"" + authorId + "\"}, "
+            + "\"includes\": {\"users\": [{\"id\": \"" + authorId + "\", \"name\": \"User " + authorId + "\", "
+            + "\"username\": \"user" + authorId + "\"}]}, "
+            + "\"matching_rules\": [{\"id\": \"1\", \"tag\": \"twittercrawler:" + HASHTAG + "\"}]}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static final class CapturingPipeline extends PersistencePipeline {
+
+        private final BlockingQueue<TweetSearchResponse> results = new LinkedBlockingQueue<>();
+        private final BlockingQueue<String> hashtags = new LinkedBlockingQueue<>();
+
+        private CapturingPipeline() {
+            super(1, 1);
+        }
+
+        @Override
+        public <T> void submit(Request<T> request, T result, Runnable onPersisted) {
+            hashtags.add(((HashtagSearchRequest) request).getHashtag());
+            results.add((TweetSearchResponse) result);
+            onPersisted.run();
+        }
+    }
+}